@@ -0,0 +1,126 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+/**
+ * Generated PlantUML sources of a given size, for the benchmarks.
+ */
+class Documents {
+    
+    private Documents() {
+    }
+    
+    /**
+     * @return a sequence diagram of roughly the given number of characters,
+     *         using most of what the highlighter knows about.
+     */
+    static String sequence(int size) {
+        StringBuilder text = new StringBuilder(size + 200);
+        text.append("@startuml\n");
+        text.append("!define SERVICE participant\n");
+        text.append("skinparam monochrome true\n");
+        text.append("actor User as U\n");
+        
+        for (int i = 0; text.length() < size; i++) {
+            text.append("participant \"Service ").append(i).append("\" as S").append(i).append("\n");
+            text.append("U -> S").append(i).append(": request(").append(i).append(") // call\n");
+            text.append("activate S").append(i).append("\n");
+            text.append("alt [ok]\n");
+            text.append("  S").append(i).append(" --> U: response { id; name; }\n");
+            text.append("else\n");
+            text.append("  /* retried\n     later */ S").append(i).append(" --> U: error\n");
+            text.append("end\n");
+            text.append("deactivate S").append(i).append("\n");
+            
+            if (i % 20 == 19) {
+                text.append("newpage\n");
+            }
+        }
+        
+        text.append("@enduml\n");
+        return text.toString();
+    }
+    
+    /**
+     * @return a sequence diagram with the given number of participants, each
+     *         of which gets a few messages.
+     */
+    static String sequenceDiagram(int participants) {
+        StringBuilder text = new StringBuilder();
+        text.append("@startuml\n");
+        text.append("actor User\n");
+        
+        for (int i = 0; i < participants; i++) {
+            text.append("User -> S").append(i).append(": request ").append(i).append("\n");
+            text.append("activate S").append(i).append("\n");
+            
+            if (i > 0) {
+                text.append("S").append(i).append(" -> S").append(i - 1).append(": delegate\n");
+                text.append("S").append(i - 1).append(" --> S").append(i).append(": result\n");
+            }
+            
+            text.append("S").append(i).append(" --> User: response\n");
+            text.append("deactivate S").append(i).append("\n");
+        }
+        
+        text.append("@enduml\n");
+        return text.toString();
+    }
+    
+    /**
+     * @return a class diagram with the given number of classes in a few
+     *         packages, with inheritance and associations between them.
+     *         Rendering these needs Graphviz dot.
+     */
+    static String classDiagram(int classes) {
+        StringBuilder text = new StringBuilder();
+        text.append("@startuml\n");
+        
+        for (int i = 0; i < classes; i++) {
+            if (i % 10 == 0) {
+                if (i > 0) {
+                    text.append("}\n");
+                }
+                text.append("package p").append(i / 10).append(" {\n");
+            }
+            
+            text.append("class C").append(i).append(" {\n");
+            text.append("  -int id\n");
+            text.append("  -String name\n");
+            text.append("  +run(int times) : void\n");
+            text.append("}\n");
+        }
+        text.append("}\n");
+        
+        for (int i = 1; i < classes; i++) {
+            if (i % 3 == 0) {
+                text.append("C").append(i / 3).append(" <|-- C").append(i).append("\n");
+            }
+            else {
+                text.append("C").append(i - 1).append(" --> \"*\" C").append(i).append(" : uses\n");
+            }
+        }
+        
+        text.append("@enduml\n");
+        return text.toString();
+    }
+}
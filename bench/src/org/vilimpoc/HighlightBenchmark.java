@@ -0,0 +1,101 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.StyleSpansBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-document highlighting: PlantUmlLexer against the PlantUmlSyntax.PATTERN
+ * regex it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HighlightBenchmark {
+    
+    // Document size in characters.
+    @Param({"1000", "10000", "100000", "1000000", "5000000"})
+    public int size;
+    
+    private String text;
+    
+    @Setup
+    public void setup() {
+        text = Documents.sequence(size);
+    }
+    
+    @Benchmark
+    public StyleSpans<Collection<String>> regex() {
+        return computeHighlightingRegex(text);
+    }
+    
+    @Benchmark
+    public StyleSpans<Collection<String>> lexer() {
+        return IncrementalHighlighter.computeHighlighting(text, null);
+    }
+    
+    // The highlighter as it was before PlantUmlLexer, for comparison.
+    static StyleSpans<Collection<String>> computeHighlightingRegex(String text) {
+        Matcher matcher = PlantUmlSyntax.PATTERN.matcher(text);
+        int lastKwEnd = 0;
+        StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
+        while(matcher.find()) {
+            String styleClass =
+                    matcher.group("AT")         != null ? "at"        :
+                    matcher.group("PREPROC")    != null ? "preproc"   :
+                    matcher.group("TYPE")       != null ? "type"      :
+                    matcher.group("KEYWORD")    != null ? "keyword"   :
+                    
+                    matcher.group("PAREN")      != null ? "paren"     :
+                    matcher.group("BRACE")      != null ? "brace"     :
+                    matcher.group("BRACKET")    != null ? "bracket"   :
+                    matcher.group("SEMICOLON")  != null ? "semicolon" :
+                    matcher.group("STRING")     != null ? "string"    :
+                    matcher.group("COMMENT")    != null ? "comment"   :
+                    null; /* never happens */ assert styleClass != null;
+            spansBuilder.add(Collections.emptyList(), matcher.start() - lastKwEnd);
+            spansBuilder.add(Collections.singleton(styleClass), matcher.end() - matcher.start());
+            lastKwEnd = matcher.end();
+        }
+        spansBuilder.add(Collections.emptyList(), text.length() - lastKwEnd);
+        return spansBuilder.create();
+    }
+}
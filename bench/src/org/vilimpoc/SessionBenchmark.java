@@ -0,0 +1,102 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Tab;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading the list of open tabs in the settings file.
+ * 
+ * Runs with user.home pointing into the build folder, so the real settings
+ * file is left alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Duser.home=build/bench/home")
+public class SessionBenchmark {
+    
+    @Param({"1", "10", "40"})
+    public int tabs;
+    
+    private ObservableList<Tab> tabList;
+    
+    @Setup
+    public void setup() throws IOException {
+        Files.createDirectories(Common.getWorkFolder());
+        
+        tabList = FXCollections.observableArrayList();
+        
+        for (int i = 0; i < tabs; i++) {
+            File file = Common.getWorkFolder().resolve("diagram" + i + ".plantuml").toFile();
+            
+            Tab tab = new Tab(file.getName());
+            tab.setUserData(new TabModel(false, file, file.getName()));
+            tabList.add(tab);
+        }
+        
+        Common.saveTabConfig(tabList);
+        Common.flushSettings();
+    }
+    
+    /**
+     * What the FX thread pays: the write itself happens in the background.
+     */
+    @Benchmark
+    public void saveTabConfig() {
+        Common.saveTabConfig(tabList);
+    }
+    
+    /**
+     * Including the write of the settings file.
+     */
+    @Benchmark
+    public void saveTabConfigAndFlush() {
+        Common.saveTabConfig(tabList);
+        Common.flushSettings();
+    }
+    
+    @Benchmark
+    public LinkedList<TabModel> loadTabConfig() {
+        return Common.loadTabConfig();
+    }
+}
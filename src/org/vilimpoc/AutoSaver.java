@@ -0,0 +1,138 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+
+/**
+ * Writes the text of one tab in the background.
+ * 
+ * save() only hands over a snapshot and returns. Snapshots handed over while
+ * an earlier one still waits just replace it, so however fast the user types,
+ * each tab has at most one write queued, and that is of its latest text. All
+ * tabs share one writer thread, so the writes of a tab can't overtake each 
+ * other.
+ * 
+ * The outcome of every write is reported back on the FX thread, so the tab
+ * only counts its text as saved once it really is on disk. flush() first has
+ * every open tab hand over the text typed since its last snapshot, so nothing
+ * typed just before exiting is lost.
+ */
+class AutoSaver {
+    
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "FabrikUml-autosave");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    private static class Snapshot {
+        final Path   file;
+        final String text;
+        
+        Snapshot(Path file, String text) {
+            this.file = file;
+            this.text = text;
+        }
+    }
+    
+    // Every AutoSaver not closed yet.
+    private static final Set<AutoSaver> open = ConcurrentHashMap.newKeySet();
+    
+    // The latest snapshot not written yet.
+    private final AtomicReference<Snapshot> pending = new AtomicReference<>();
+    
+    private final Runnable            pushUnsaved;
+    private final Consumer<String>    onWritten;
+    private final Consumer<Exception> onFailed;
+    
+    /**
+     * @param pushUnsaved called by flush(), on the FX thread, to save() any 
+     *                    text not handed over yet.
+     * @param onWritten   gets the text of each successful write, on the FX 
+     *                    thread.
+     * @param onFailed    gets the error of each failed write, on the FX 
+     *                    thread.
+     */
+    AutoSaver(Runnable pushUnsaved, Consumer<String> onWritten, Consumer<Exception> onFailed) {
+        this.pushUnsaved = pushUnsaved;
+        this.onWritten   = onWritten;
+        this.onFailed    = onFailed;
+        
+        open.add(this);
+    }
+    
+    /**
+     * Stops flush() from asking for more text. Writes already handed over
+     * still happen.
+     */
+    void close() {
+        open.remove(this);
+    }
+    
+    void save(Path file, String text) {
+        if (pending.getAndSet(new Snapshot(file, text)) == null) {
+            writer.execute(this::write);
+        }
+    }
+    
+    /**
+     * Hands over the unsaved text of all open AutoSavers and waits until it's
+     * written. Call on the FX thread.
+     */
+    static void flush() {
+        for (AutoSaver saver : open) {
+            saver.pushUnsaved.run();
+        }
+        
+        try {
+            writer.submit(() -> {}).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(AutoSaver.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    private void write() {
+        Snapshot snapshot = pending.getAndSet(null);
+        
+        Logger.getLogger(AutoSaver.class.getName()).log(Level.FINE, "Write: {0}", snapshot.file);
+        
+        try {
+            TextFiles.write(snapshot.file, snapshot.text);
+            Platform.runLater(() -> onWritten.accept(snapshot.text));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(AutoSaver.class.getName()).log(Level.SEVERE, null, ex);
+            Platform.runLater(() -> onFailed.accept(ex));
+        }
+    }
+}
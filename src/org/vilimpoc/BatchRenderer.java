@@ -0,0 +1,464 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Renders whole directory trees of diagrams without starting the UI, e.g. in
+ * a CI build:
+ * 
+ *   java -cp FabrikUml.jar org.vilimpoc.BatchRenderer [options] (folder | file | glob)...
+ * 
+ * It has its own main(), because FabrikUml's starts the JavaFX toolkit, which
+ * fails on a machine without a display.
+ * 
+ * Folders are searched recursively for DEFAULT_PATTERN. Globs are matched
+ * against paths below their first non-wildcard folder, e.g. "docs/**.puml".
+ * Each diagram is written next to its source, unless --out is given, with 
+ * the file extension of the output format. Every page gets its own image,
+ * named like PlantUML's command line names them: "a.png", "a_001.png", ...
+ * Files are rendered in parallel on a ForkJoinPool.
+ * 
+ * The Renderer.key() of every written image is kept in a manifest, so files
+ * which haven't changed since the last run, nor any files they include, are
+ * skipped.
+ */
+class BatchRenderer {
+    
+    private static final String DEFAULT_PATTERN = "*.{plantuml,puml,pu}";
+    
+    private static final String MANIFEST_FILE = "batch-manifest.properties";
+    
+    // Same as Common's. Loading Common needs JavaFX, which a CI machine may 
+    // not have.
+    private static final String WORK_FOLDER = ".FabrikUml";
+    
+    private static final String USAGE = 
+        "Usage: java -cp FabrikUml.jar org.vilimpoc.BatchRenderer [options] (folder | file | glob)...\n" +
+        "  --svg              Render SVG instead of PNG\n" +
+        "  --jdot             Lay out in Java, without running Graphviz dot\n" +
+        "  --out <folder>     Write images below this folder, instead of next to their sources\n" +
+        "  --threads <n>      Number of parallel renders (default: all cores)\n" +
+        "  --manifest <file>  Where to keep the hashes of rendered sources\n" +
+        "  --force            Render everything, even if unchanged";
+    
+    private static class Source {
+        final Path file;
+        
+        // The folder given on the command line, for the path below --out.
+        final Path root;
+        
+        Source(Path file, Path root) {
+            this.file = file;
+            this.root = root;
+        }
+    }
+    
+    private RenderOptions options = RenderOptions.PNG;
+    private Path          outFolder;
+    private Path          manifestFile = Paths.get(System.getProperty("user.home"), WORK_FOLDER, MANIFEST_FILE);
+    private int           threads = Runtime.getRuntime().availableProcessors();
+    private boolean       force;
+    
+    private final List<String> inputs = new ArrayList<>();
+    
+    // Output path -> key of the source it was rendered from. Properties is 
+    // synchronized, so the workers can share it.
+    private final Properties manifest = new Properties();
+    
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger skipped  = new AtomicInteger();
+    private final AtomicInteger failed   = new AtomicInteger();
+    
+    private final AtomicLong renderNanos = new AtomicLong();
+    private final AtomicLong sourceBytes = new AtomicLong();
+    private final AtomicLong imageBytes  = new AtomicLong();
+    
+    private BatchRenderer() {
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+    
+    /**
+     * @return the process exit code: 0 if everything rendered, 1 if any 
+     *         diagram failed, 2 for bad arguments.
+     */
+    private static int run(String[] args) {
+        // PlantUML measures text with AWT, which mustn't look for a display.
+        System.setProperty("java.awt.headless", "true");
+        
+        BatchRenderer batch = new BatchRenderer();
+        
+        if (!batch.parseArguments(args)) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        
+        try {
+            return batch.renderAll();
+        } catch (IOException ex) {
+            Logger.getLogger(BatchRenderer.class.getName()).log(Level.SEVERE, null, ex);
+            return 2;
+        }
+    }
+    
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--svg":
+                        options = RenderOptions.SVG.javaLayout(options.javaLayout);
+                        break;
+                    case "--jdot":
+                        options = options.javaLayout(true);
+                        break;
+                    case "--out":
+                        outFolder = Paths.get(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--manifest":
+                        manifestFile = Paths.get(args[++i]);
+                        break;
+                    case "--force":
+                        force = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            System.err.println("Unknown option: " + args[i]);
+                            return false;
+                        }
+                        inputs.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            return false;
+        }
+        
+        return !inputs.isEmpty() && threads > 0;
+    }
+    
+    private int renderAll() throws IOException {
+        List<Source> sources = new ArrayList<>();
+        
+        for (String input : inputs) {
+            if (!findSources(input, sources)) {
+                System.err.println("Not found: " + input);
+                return 2;
+            }
+        }
+        
+        loadManifest();
+        
+        long startTime = System.nanoTime();
+        
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        
+        List<ForkJoinTask<?>> jobs = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            jobs.add(pool.submit(() -> render(source)));
+        }
+        for (ForkJoinTask<?> job : jobs) {
+            job.join();
+        }
+        
+        pool.shutdown();
+        
+        long elapsedNanos = System.nanoTime() - startTime;
+        
+        saveManifest();
+        printSummary(sources.size(), elapsedNanos);
+        
+        return failed.get() == 0 ? 0 : 1;
+    }
+    
+    /**
+     * Adds the files matching input to sources.
+     * 
+     * @return false if input is neither a file, a folder nor a glob.
+     */
+    private boolean findSources(String input, List<Source> sources) throws IOException {
+        int wildcard = indexOfWildcard(input);
+        
+        Path root;
+        PathMatcher matcher;
+        boolean matchName;
+        
+        if (wildcard >= 0) {
+            // Split "docs/**/*.puml" into "docs" and "**/*.puml".
+            int separator = Math.max(input.lastIndexOf('/', wildcard), input.lastIndexOf(File.separatorChar, wildcard));
+            
+            root      = Paths.get(separator >= 0 ? input.substring(0, separator + 1) : ".");
+            matcher   = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(separator + 1));
+            matchName = false;
+        }
+        else {
+            root = Paths.get(input);
+            
+            if (Files.isRegularFile(root)) {
+                sources.add(new Source(root, root.toAbsolutePath().getParent()));
+                return true;
+            }
+            
+            matcher   = FileSystems.getDefault().getPathMatcher("glob:" + DEFAULT_PATTERN);
+            matchName = true;
+        }
+        
+        if (!Files.isDirectory(root)) {
+            return false;
+        }
+        
+        try (Stream<Path> files = Files.walk(root)) {
+            final Path folder = root;
+            
+            sources.addAll(files
+                .filter(Files::isRegularFile)
+                .filter(f -> matcher.matches(matchName ? f.getFileName() : folder.relativize(f)))
+                .map(f -> new Source(f, folder))
+                .collect(Collectors.toList()));
+        }
+        
+        return true;
+    }
+    
+    private static int indexOfWildcard(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            switch (input.charAt(i)) {
+                case '*':
+                case '?':
+                case '[':
+                case '{':
+                    return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * @return where page number page of source goes. The first page keeps 
+     *         the plain name, later ones get PlantUML's own "_001", "_002", 
+     *         ... suffixes.
+     */
+    private Path outputFile(Source source, int page) {
+        String name = source.file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        
+        name = (dot > 0 ? name.substring(0, dot) : name)
+             + (page > 0 ? String.format("_%03d", page) : "")
+             + options.format.getFileSuffix();
+        
+        if (outFolder == null) {
+            return source.file.resolveSibling(name);
+        }
+        
+        Path relative = source.root.toAbsolutePath().relativize(source.file.toAbsolutePath());
+        return outFolder.resolve(relative).resolveSibling(name);
+    }
+    
+    private void render(Source source) {
+        try {
+            String text = new String(Files.readAllBytes(source.file), StandardCharsets.UTF_8);
+            File folder = source.file.toAbsolutePath().getParent().toFile();
+            
+            // Relative !includes are resolved against the file's own folder.
+            List<DiagramPages.Page> pages = DiagramPages.split(text, folder);
+            
+            int renderedPages = 0;
+            int failedPages   = 0;
+            
+            for (int i = 0; i < pages.size(); i++) {
+                Boolean ok = render(source, pages.get(i), outputFile(source, i));
+                
+                if (ok == null) {
+                    continue;
+                }
+                if (ok) {
+                    renderedPages++;
+                }
+                else {
+                    failedPages++;
+                }
+            }
+            
+            sourceBytes.addAndGet(text.length());
+            
+            if (failedPages > 0) {
+                failed.incrementAndGet();
+            }
+            else if (renderedPages > 0) {
+                rendered.incrementAndGet();
+            }
+            else {
+                skipped.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Failed: " + source.file + " " + ex);
+            failed.incrementAndGet();
+        }
+    }
+    
+    /**
+     * @return true if the page was rendered, false if it failed, null if it
+     *         was skipped as unchanged.
+     */
+    private Boolean render(Source source, DiagramPages.Page page, Path output) {
+        String id = output.toAbsolutePath().normalize().toString();
+        
+        try {
+            // Changes to included files count as changes, too.
+            String key = page.key(options);
+            
+            if (!force && key.equals(manifest.getProperty(id)) && Files.exists(output)) {
+                return null;
+            }
+            
+            Renderer.Result result = Renderer.render(page.source, page.folder, page.options(options));
+            
+            if (output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            write(output, result);
+            
+            renderNanos.addAndGet(result.elapsedNanos);
+            imageBytes.addAndGet(result.length);
+            
+            // PlantUML still draws an image for a broken diagram.
+            if (result.description == null || result.description.contains("Error")) {
+                System.err.println("Failed: " + source.file + " page " + (page.index + 1) + " " + result.description);
+                manifest.remove(id);
+                return false;
+            }
+            
+            System.out.println(source.file + " -> " + output + " (" + Metrics.ms(result.elapsedNanos) + "ms)");
+            
+            manifest.setProperty(id, key);
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Failed: " + source.file + " page " + (page.index + 1) + " " + ex);
+            manifest.remove(id);
+            return false;
+        }
+    }
+    
+    /**
+     * Writes to the side and moves the result into place, as TextFiles.write()
+     * does, so an interrupted run can't leave a truncated image behind.
+     */
+    private static void write(Path output, Renderer.Result result) throws IOException {
+        Path temp = output.resolveSibling("." + output.getFileName() + ".tmp");
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temp, 
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                
+                result.writeTo(Channels.newOutputStream(channel));
+                channel.force(true);
+            }
+            
+            try {
+                Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only still there if something failed.
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    private void loadManifest() {
+        if (force || !Files.exists(manifestFile)) {
+            return;
+        }
+        
+        try (InputStream in = Files.newInputStream(manifestFile)) {
+            manifest.load(in);
+        } catch (IOException ex) {
+            // Just render everything again.
+            Logger.getLogger(BatchRenderer.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    private void saveManifest() throws IOException {
+        Path folder = manifestFile.toAbsolutePath().getParent();
+        Files.createDirectories(folder);
+        
+        // Write to the side first, so an interrupted run can't leave a 
+        // truncated manifest behind.
+        Path temp = Files.createTempFile(folder, MANIFEST_FILE, ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            manifest.store(out, "FabrikUml batch render hashes");
+        }
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private void printSummary(int total, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        
+        System.out.println(String.format(
+            "%d files: %d rendered, %d unchanged, %d failed in %.2fs with %d threads",
+            total, rendered.get(), skipped.get(), failed.get(), seconds, threads));
+        
+        int done = rendered.get() + failed.get();
+        if (done > 0) {
+            System.out.println(String.format(
+                "%.1f diagrams/s, %.1f KB/s of source, %.1f MB of images, %dms PlantUML time per diagram (%.1fx parallel speedup)",
+                done / seconds,
+                sourceBytes.get() / 1024.0 / seconds,
+                imageBytes.get() / 1024.0 / 1024.0,
+                Metrics.ms(renderNanos.get() / done),
+                renderNanos.get() / (double) elapsedNanos));
+        }
+    }
+}
@@ -22,17 +22,14 @@
 package org.vilimpoc;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Properties;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import javafx.collections.ObservableList;
 import javafx.scene.control.Tab;
 import javafx.scene.input.KeyCode;
@@ -47,15 +44,19 @@ class Common {
     
     private static final Properties settings = new Properties();
     
+    private static final String TAB_KEY_PREFIX = "file";
+    
     private static final String UNTITLED_FILE_PREFIX = "FabrikUml-";
     private static final String UNTITLED_FILE_SUFFIX = ".txt";
 
     private static final String WORK_FOLDER = ".FabrikUml";
     private static final String SETTINGS_FILE = "FabrikUml.settings";
+    private static final String RENDER_CACHE_FOLDER = "render-cache";
 
     static final KeyCombination NEW_  = new KeyCodeCombination(KeyCode.N, KeyCombination.CONTROL_DOWN);
     static final KeyCombination SAVE  = new KeyCodeCombination(KeyCode.S, KeyCombination.CONTROL_DOWN);
     static final KeyCombination CLOSE = new KeyCodeCombination(KeyCode.W, KeyCombination.CONTROL_DOWN);
+    static final KeyCombination LIVE  = new KeyCodeCombination(KeyCode.L, KeyCombination.CONTROL_DOWN);
     
     // Figure out what $HOME folder is.
     //
@@ -69,6 +70,10 @@ class Common {
         return Paths.get(getWorkFolder().toString(), SETTINGS_FILE);
     }
     
+    static Path getRenderCacheFolder() {
+        return getWorkFolder().resolve(RENDER_CACHE_FOLDER);
+    }
+    
     static File getUntitledFile() throws IOException {
         return File.createTempFile(UNTITLED_FILE_PREFIX, UNTITLED_FILE_SUFFIX, getWorkFolder().toFile());
     }
@@ -82,19 +87,106 @@ class Common {
         save();
     }
     
+    static boolean isLivePreview() {
+        return Boolean.parseBoolean(settings.getProperty("LIVE_PREVIEW", "true"));
+    }
+    
+    static void setLivePreview(boolean enabled) {
+        settings.setProperty("LIVE_PREVIEW", Boolean.toString(enabled));
+        save();
+    }
+    
+    static boolean isSvgPreview() {
+        return Boolean.parseBoolean(settings.getProperty("SVG_PREVIEW", "false"));
+    }
+    
+    static void setSvgPreview(boolean enabled) {
+        settings.setProperty("SVG_PREVIEW", Boolean.toString(enabled));
+        save();
+    }
+    
+    /**
+     * @return true to lay diagrams out in Java, without running Graphviz dot.
+     */
+    static boolean isJavaLayout() {
+        return Boolean.parseBoolean(settings.getProperty("JAVA_LAYOUT", "false"));
+    }
+    
+    static void setJavaLayout(boolean enabled) {
+        settings.setProperty("JAVA_LAYOUT", Boolean.toString(enabled));
+        save();
+    }
+    
+    /**
+     * @return the size from which files are edited without highlighting and
+     *         only rendered on request.
+     */
+    static long getLargeFileBytes() {
+        return Long.parseLong(settings.getProperty("LARGE_FILE_MB", "5")) * 1024 * 1024;
+    }
+    
+    static long getRenderCacheBytes() {
+        return Long.parseLong(settings.getProperty("RENDER_CACHE_MB", "128")) * 1024 * 1024;
+    }
+    
+    static long getPreviewImageBytes() {
+        return Long.parseLong(settings.getProperty("PREVIEW_IMAGE_MB", "256")) * 1024 * 1024;
+    }
+    
+    /**
+     * @return how many separate JVMs to render in, 0 to render in this one.
+     */
+    static int getRenderWorkers() {
+        return Integer.parseInt(settings.getProperty("RENDER_WORKERS", "0"));
+    }
+    
+    static int getRenderWorkerHeapMb() {
+        return Integer.parseInt(settings.getProperty("RENDER_WORKER_HEAP_MB", "512"));
+    }
+    
+    /**
+     * @return how long a render may take before it's cut off.
+     */
+    static long getRenderBudgetMs() {
+        return Long.parseLong(settings.getProperty("RENDER_BUDGET_S", "30")) * 1000;
+    }
+    
+    /**
+     * @return how long the last render of a tab must have taken for the next
+     *         one to show a draft first.
+     */
+    static long getDraftAfterMs() {
+        return Long.parseLong(settings.getProperty("DRAFT_PREVIEW_AFTER_MS", "1000"));
+    }
+    
+    /**
+     * @return how long a render may take before it's logged as slow.
+     */
+    static long getSlowRenderMs() {
+        return Long.parseLong(settings.getProperty("SLOW_RENDER_MS", "2000"));
+    }
+    
+    static long getDiskCacheBytes() {
+        return Long.parseLong(settings.getProperty("DISK_CACHE_MB", "256")) * 1024 * 1024;
+    }
+    
+    private static final SessionStore store = new SessionStore(getSettingsFile(), "FabrikUml Settings");
+    
     private static void save() {
-        try {
-            settings.store(new FileOutputStream(getSettingsFile().toFile()), "FabrikUml Settings");
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Common.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(Common.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        // Written in the background, see SessionStore.
+        store.save((Properties) settings.clone());
+    }
+    
+    /**
+     * Waits for the settings to be written, e.g. before exiting.
+     */
+    static void flushSettings() {
+        store.flush();
     }
     
     static {
-        try {
-            settings.load(new FileInputStream(getSettingsFile().toFile()));
+        try (InputStream in = Files.newInputStream(getSettingsFile())) {
+            settings.load(in);
         } 
         catch (IOException ex) {
             // Set default property values, if file not found, etc.
@@ -103,42 +195,48 @@ class Common {
     }
 
     static void saveTabConfig(ObservableList<Tab> tabs) {
+        // Clear all of the file properties, however many there were.
+        settings.keySet().removeIf(key -> isTabKey(key.toString()));
+        
         int fileId = 0;
         
-        // Clear all of the file properties.
-        for (int f = 0; f < 99; f++) {
-            if (settings.containsKey("file" + f)) {
-                settings.remove("file" + f);
-            }
-        }
-            
         for (Tab t : tabs) {
-            System.out.println(t.getUserData().toString());
-            
-            settings.setProperty("file" + fileId, t.getUserData().toString());
+            settings.setProperty(TAB_KEY_PREFIX + fileId, t.getUserData().toString());
             fileId++;
-        };
+        }
         
         save();
     }
     
+    private static boolean isTabKey(String key) {
+        if (!key.startsWith(TAB_KEY_PREFIX) || key.length() == TAB_KEY_PREFIX.length()) {
+            return false;
+        }
+        
+        for (int i = TAB_KEY_PREFIX.length(); i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
     static LinkedList<TabModel> loadTabConfig() {
         LinkedList<TabModel> models = new LinkedList<>();
         
-        for (int fileId = 0; fileId < 99; fileId++) {
-            String key = "file" + fileId;
+        // Numbered without gaps by saveTabConfig().
+        for (int fileId = 0; ; fileId++) {
+            String value = settings.getProperty(TAB_KEY_PREFIX + fileId);
             
-            if (settings.keySet().contains(key)) {
-                String value = settings.getProperty(key);
-                String[] fields = value.split(",");
-                
-                System.out.println(fields[0]);
-                System.out.println(fields[1]);
-                System.out.println(fields[2]);
-                
-                TabModel model = new TabModel(fields[0], fields[1], fields[2]);
-                models.add(model);
+            if (value == null) {
+                break;
             }
+            
+            String[] fields = value.split(",");
+            
+            TabModel model = new TabModel(fields[0], fields[1], fields[2]);
+            models.add(model);
         }
         
         return models;
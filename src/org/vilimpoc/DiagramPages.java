@@ -0,0 +1,358 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.sourceforge.plantuml.BlockUml;
+import net.sourceforge.plantuml.SourceStringReader;
+
+/**
+ * Splits a document into the pages PlantUML draws for it: one or more per
+ * @startuml block, more when a block uses newpage.
+ * 
+ * Blocks are found with a quick scan for the PUML_ATS markers, without 
+ * running PlantUML over the whole document. Each page keeps the text of its
+ * own block, plus a fingerprint of every file the block !includes, so it can
+ * be rendered and cached independently: editing one block, or a file only 
+ * one block includes, leaves the cache keys of all the others untouched.
+ * 
+ * Finding the number of pages in a block means parsing it, so the counts are
+ * remembered by block key. Safe to use from any thread.
+ */
+class DiagramPages {
+    
+    static class Page {
+        // Text of the page's block, from @start to @end.
+        final String source;
+        
+        // Where the block's relative !includes are found, may be null.
+        final File   folder;
+        
+        // Paths and modification times of everything the block includes.
+        final String dependencies;
+        
+        // Everything the block includes, as absolute paths.
+        final Set<Path> includes;
+        
+        // Index of the page within its block.
+        final int    index;
+        
+        Page(String source, File folder, String dependencies, Set<Path> includes, int index) {
+            this.source       = source;
+            this.folder       = folder;
+            this.dependencies = dependencies;
+            this.includes     = includes;
+            this.index        = index;
+        }
+        
+        RenderOptions options(RenderOptions options) {
+            return options.page(index);
+        }
+        
+        String key(RenderOptions options) {
+            return Renderer.key(source, dependencies, options(options));
+        }
+    }
+    
+    // And the rest of the family: !include_many, !include_once, 
+    // !includesub, ...
+    private static final String INCLUDE     = "!include";
+    private static final String INCLUDE_URL = "!includeurl";
+    
+    // Includes nested deeper than this are assumed to be cyclic.
+    private static final int MAX_INCLUDE_DEPTH = 16;
+    
+    private static final int MAX_COUNTS = 256;
+    
+    // Block key -> number of pages, least recently used first.
+    private static final Map<String, Integer> pageCounts = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_COUNTS;
+        }
+    };
+    
+    private DiagramPages() {
+    }
+    
+    /**
+     * One @start ... @end block, and the files it !includes itself.
+     */
+    private static class Block {
+        final String       text;
+        final List<String> includes;
+        
+        Block(String text, List<String> includes) {
+            this.text     = text;
+            this.includes = includes;
+        }
+    }
+    
+    /**
+     * @param folder where relative !includes are found, or null for the 
+     *               current directory.
+     * 
+     * @return the pages of source, or a single page with all of source if it
+     *         has no @start/@end blocks, so PlantUML can say what's wrong.
+     */
+    static List<Page> split(String source, File folder) {
+        List<Page> pages = new ArrayList<>();
+        
+        List<String> allIncludes = new ArrayList<>();
+        
+        for (Block block : scan(source, allIncludes)) {
+            Set<Path> includes = new LinkedHashSet<>();
+            String dependencies = dependencies(block.includes, folder, includes);
+            int count = pageCount(block.text, folder, dependencies);
+            
+            for (int i = 0; i < count; i++) {
+                pages.add(new Page(block.text, folder, dependencies, includes, i));
+            }
+        }
+        
+        if (pages.isEmpty()) {
+            Set<Path> includes = new LinkedHashSet<>();
+            pages.add(new Page(source, folder, dependencies(allIncludes, folder, includes), includes, 0));
+        }
+        
+        return pages;
+    }
+    
+    /**
+     * Finds every @start ... @end block in source, and the !includes of each,
+     * in a single pass over its lines. Text between blocks is ignored, as 
+     * PlantUML does.
+     * 
+     * @param allIncludes gets the files included anywhere in source, inside
+     *                    blocks or not.
+     */
+    private static List<Block> scan(String source, List<String> allIncludes) {
+        List<Block> blocks = new ArrayList<>();
+        
+        int          blockStart    = -1;
+        List<String> blockIncludes = null;
+        int          lineStart     = 0;
+        
+        while (lineStart < source.length()) {
+            int lineEnd = source.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = source.length();
+            }
+            
+            String name = includedName(source, lineStart, lineEnd);
+            if (name != null) {
+                allIncludes.add(name);
+            }
+            
+            if (blockStart < 0) {
+                if (isMarker(source, lineStart, lineEnd, "@start")) {
+                    blockStart    = lineStart;
+                    blockIncludes = new ArrayList<>();
+                }
+            }
+            else
+            if (isMarker(source, lineStart, lineEnd, "@end")) {
+                blocks.add(new Block(source.substring(blockStart, Math.min(lineEnd + 1, source.length())), blockIncludes));
+                blockStart = -1;
+            }
+            else
+            if (name != null) {
+                blockIncludes.add(name);
+            }
+            
+            lineStart = lineEnd + 1;
+        }
+        
+        return blocks;
+    }
+    
+    /**
+     * @return true if the line is one of the PUML_ATS starting with prefix.
+     */
+    private static boolean isMarker(String source, int lineStart, int lineEnd, String prefix) {
+        while (lineStart < lineEnd && Character.isWhitespace(source.charAt(lineStart))) {
+            lineStart++;
+        }
+        
+        if (!source.startsWith(prefix, lineStart)) {
+            return false;
+        }
+        
+        for (String marker : PlantUmlSyntax.PUML_ATS) {
+            int markerEnd = lineStart + marker.length();
+            
+            if (marker.startsWith(prefix) 
+                && source.startsWith(marker, lineStart)
+                && (markerEnd == lineEnd || !Character.isLetterOrDigit(source.charAt(markerEnd)))) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @param names    the files the block includes itself.
+     * @param includes gets the paths of all the included files.
+     */
+    private static String dependencies(List<String> names, File folder, Set<Path> includes) {
+        if (names.isEmpty()) {
+            return "";
+        }
+        
+        StringBuilder fingerprint = new StringBuilder();
+        addIncludes(names, folder, fingerprint, includes, 0);
+        
+        return fingerprint.toString();
+    }
+    
+    private static void addIncludes(List<String> names, File folder, StringBuilder fingerprint, Set<Path> seen, int depth) {
+        if (depth > MAX_INCLUDE_DEPTH) {
+            return;
+        }
+        
+        for (String name : names) {
+            File file = new File(name);
+            if (!file.isAbsolute() && folder != null) {
+                file = new File(folder, name);
+            }
+            file = file.getAbsoluteFile().toPath().normalize().toFile();
+            
+            fingerprint.append(file).append('|').append(file.lastModified()).append('|').append(file.length()).append('\n');
+            
+            if (seen.add(file.toPath()) && file.isFile()) {
+                try {
+                    String included = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                    
+                    // Nested includes are relative to the folder of the file
+                    // including them.
+                    addIncludes(includedNames(included), file.getParentFile(), fingerprint, seen, depth + 1);
+                } catch (IOException ex) {
+                    // Rendering will report it.
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the files text includes, in order.
+     */
+    private static List<String> includedNames(String text) {
+        List<String> names = new ArrayList<>();
+        
+        // Most files include nothing.
+        if (!text.contains(INCLUDE)) {
+            return names;
+        }
+        
+        int lineStart = 0;
+        
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            
+            String name = includedName(text, lineStart, lineEnd);
+            if (name != null) {
+                names.add(name);
+            }
+            
+            lineStart = lineEnd + 1;
+        }
+        
+        return names;
+    }
+    
+    /**
+     * @return the file name if text[lineStart, lineEnd) is a line of the 
+     *         !include family, e.g. !include_many or !include_once, but not
+     *         !includeurl, or null for other lines.
+     */
+    private static String includedName(String text, int lineStart, int lineEnd) {
+        while (lineStart < lineEnd && Character.isWhitespace(text.charAt(lineStart))) {
+            lineStart++;
+        }
+        
+        if (!text.startsWith(INCLUDE, lineStart) || text.startsWith(INCLUDE_URL, lineStart)) {
+            return null;
+        }
+        
+        // Skip the rest of the directive, e.g. "_once".
+        int nameStart = lineStart + INCLUDE.length();
+        while (nameStart < lineEnd && (Character.isLetter(text.charAt(nameStart)) || text.charAt(nameStart) == '_')) {
+            nameStart++;
+        }
+        
+        if (nameStart == lineEnd || !Character.isWhitespace(text.charAt(nameStart))) {
+            return null;
+        }
+        
+        String name = text.substring(nameStart, lineEnd).trim();
+        
+        if (name.startsWith("\"") && name.endsWith("\"") && name.length() > 1) {
+            name = name.substring(1, name.length() - 1);
+        }
+        
+        // "file!2" includes only the third block of file, "file!NAME" the
+        // part NAME of it.
+        int block = name.lastIndexOf('!');
+        if (block > 0) {
+            name = name.substring(0, block);
+        }
+        
+        return name.isEmpty() ? null : name;
+    }
+    
+    private static int pageCount(String block, File folder, String dependencies) {
+        String key = Renderer.key(block, dependencies, RenderOptions.PNG);
+        
+        synchronized (pageCounts) {
+            Integer count = pageCounts.get(key);
+            if (count != null) {
+                return count;
+            }
+        }
+        
+        // Parses the block, includes and all.
+        SourceStringReader reader = folder != null ? new SourceStringReader(block, folder) : new SourceStringReader(block);
+        List<BlockUml> blocks = reader.getBlocks();
+        
+        int count = blocks.isEmpty() ? 1 : Math.max(1, blocks.get(0).getDiagram().getNbImages());
+        
+        synchronized (pageCounts) {
+            pageCounts.put(key, count);
+        }
+        
+        return count;
+    }
+}
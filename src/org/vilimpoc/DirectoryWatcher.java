@@ -0,0 +1,224 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+
+/**
+ * Watches files for changes made outside the application, with one 
+ * WatchService and one thread for everything.
+ * 
+ * Each listener names the files it's interested in, and the folders 
+ * containing them are watched. Events are collected until the files have 
+ * been quiet for DEBOUNCE_MS, so a save which truncates, writes and renames 
+ * counts only once, then every listener gets all of its changed files in a 
+ * single call on the FX thread.
+ */
+class DirectoryWatcher {
+    
+    private static final long DEBOUNCE_MS = 300;
+    
+    // Deliver anyway after this long, for files that never stop changing.
+    private static final long MAX_DELAY_MS = 2000;
+    
+    // Listener -> the absolute paths it watches.
+    private static final Map<Consumer<Set<Path>>, Set<Path>> listeners = new HashMap<>();
+    
+    // Watched folder -> its registration.
+    private static final Map<Path, WatchKey> keys = new HashMap<>();
+    
+    private static WatchService service;
+    
+    private DirectoryWatcher() {
+    }
+    
+    /**
+     * Replaces the files watched for listener. An empty set stops watching.
+     * 
+     * @param listener called on the FX thread with the files that changed.
+     */
+    static synchronized void watch(Consumer<Set<Path>> listener, Set<Path> files) {
+        if (files.isEmpty()) {
+            listeners.remove(listener);
+        }
+        else {
+            Set<Path> absolute = new HashSet<>();
+            for (Path file : files) {
+                absolute.add(file.toAbsolutePath().normalize());
+            }
+            listeners.put(listener, absolute);
+        }
+        
+        updateKeys();
+    }
+    
+    private static void updateKeys() {
+        Set<Path> folders = new HashSet<>();
+        for (Set<Path> files : listeners.values()) {
+            for (Path file : files) {
+                if (file.getParent() != null) {
+                    folders.add(file.getParent());
+                }
+            }
+        }
+        
+        Iterator<Map.Entry<Path, WatchKey>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = it.next();
+            
+            if (!folders.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                it.remove();
+            }
+        }
+        
+        for (Path folder : folders) {
+            if (keys.containsKey(folder)) {
+                continue;
+            }
+            
+            try {
+                keys.put(folder, folder.register(service(), 
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (IOException ex) {
+                // Missing folder, e.g. a broken !include. Retried on the next
+                // call to watch().
+                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+    
+    private static WatchService service() throws IOException {
+        if (service == null) {
+            service = FileSystems.getDefault().newWatchService();
+            
+            Thread thread = new Thread(DirectoryWatcher::run, "FabrikUml-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        return service;
+    }
+    
+    private static void run() {
+        WatchService service;
+        synchronized (DirectoryWatcher.class) {
+            service = DirectoryWatcher.service;
+        }
+        
+        Set<Path> changed = new HashSet<>();
+        long firstEvent = 0;
+        long deadline   = 0;
+        
+        try {
+            while (true) {
+                WatchKey key = changed.isEmpty() 
+                    ? service.take() 
+                    : service.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                
+                if (key != null) {
+                    Path folder = (Path) key.watchable();
+                    
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        // Events were lost, so anything in there may have changed.
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            changed.add(folder);
+                        }
+                        else {
+                            changed.add(folder.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                    
+                    long now = System.currentTimeMillis();
+                    if (firstEvent == 0) {
+                        firstEvent = now;
+                    }
+                    deadline = Math.min(now + DEBOUNCE_MS, firstEvent + MAX_DELAY_MS);
+                }
+                
+                if (!changed.isEmpty() && System.currentTimeMillis() >= deadline) {
+                    deliver(changed);
+                    
+                    changed    = new HashSet<>();
+                    firstEvent = 0;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Shutting down.
+        }
+    }
+    
+    private static void deliver(Set<Path> changed) {
+        Map<Consumer<Set<Path>>, Set<Path>> batch = new LinkedHashMap<>();
+        
+        synchronized (DirectoryWatcher.class) {
+            for (Map.Entry<Consumer<Set<Path>>, Set<Path>> entry : listeners.entrySet()) {
+                Set<Path> files = new HashSet<>();
+                
+                for (Path file : entry.getValue()) {
+                    if (changed.contains(file) || changed.contains(file.getParent())) {
+                        files.add(file);
+                    }
+                }
+                
+                if (!files.isEmpty()) {
+                    batch.put(entry.getKey(), files);
+                }
+            }
+        }
+        
+        if (!batch.isEmpty()) {
+            Platform.runLater(() -> batch.forEach(Consumer::accept));
+        }
+    }
+    
+    static synchronized void shutdown() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ex) {
+                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
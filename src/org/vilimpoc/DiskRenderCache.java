@@ -0,0 +1,282 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sourceforge.plantuml.version.Version;
+
+/**
+ * Encoded renders kept on disk between sessions, keyed by Renderer.key().
+ * 
+ * Every PlantUML version gets its own folder, since a newer PlantUML may draw
+ * the same source differently; folders of other versions are deleted. Files 
+ * are written to a temporary name and then moved into place, so a crash never
+ * leaves a half-written entry behind.
+ * 
+ * The folder is scanned once, on first use, into an in-memory index so that
+ * lookups never touch the disk for a miss. The total size is capped by 
+ * deleting the least recently used files, based on their modification time,
+ * which is bumped on every hit.
+ * 
+ * Safe to use from any thread, but does disk I/O: don't call it on the FX
+ * thread.
+ */
+class DiskRenderCache {
+    
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    private static final class IndexEntry {
+        final long size;
+        long       lastUsed;
+        
+        IndexEntry(long size, long lastUsed) {
+            this.size     = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+    
+    private final Path root;
+    private final Path folder;
+    private final long budgetBytes;
+    
+    private Map<String, IndexEntry> index;
+    
+    private long usedBytes;
+    
+    DiskRenderCache(Path root, long budgetBytes) {
+        this.root        = root;
+        this.folder      = root.resolve("V" + Version.version());
+        this.budgetBytes = budgetBytes;
+    }
+    
+    byte[] get(String key) {
+        IndexEntry entry;
+        
+        synchronized (this) {
+            entry = index().get(key);
+            
+            if (entry == null) {
+                return null;
+            }
+            
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        
+        Path file = folder.resolve(key);
+        
+        try {
+            byte[] data = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(entry.lastUsed));
+            return data;
+        } catch (IOException ex) {
+            // Deleted behind our back, or unreadable: forget about it.
+            synchronized (this) {
+                if (index.remove(key, entry)) {
+                    usedBytes -= entry.size;
+                }
+            }
+            return null;
+        }
+    }
+    
+    void put(String key, byte[] data) {
+        if (data.length > budgetBytes) {
+            return;
+        }
+        
+        synchronized (this) {
+            if (index().containsKey(key)) {
+                return;
+            }
+        }
+        
+        Path file = folder.resolve(key);
+        Path temp = folder.resolve(key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temp, 
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                
+                // On disk before it's renamed, or a crash could leave an
+                // empty entry under the final name.
+                channel.force(true);
+            }
+            
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(DiskRenderCache.class.getName()).log(Level.WARNING, "Could not cache " + key, ex);
+            
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        
+        synchronized (this) {
+            IndexEntry old = index.put(key, new IndexEntry(data.length, System.currentTimeMillis()));
+            if (old != null) {
+                usedBytes -= old.size;
+            }
+            usedBytes += data.length;
+            
+            evict();
+        }
+    }
+    
+    /**
+     * Forgets an entry which turned out to be broken, so the next put() can
+     * replace it.
+     */
+    void remove(String key) {
+        synchronized (this) {
+            IndexEntry entry = index().remove(key);
+            
+            if (entry == null) {
+                return;
+            }
+            usedBytes -= entry.size;
+        }
+        
+        try {
+            Files.deleteIfExists(folder.resolve(key));
+        } catch (IOException ex) {
+            Logger.getLogger(DiskRenderCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    private void evict() {
+        if (usedBytes <= budgetBytes) {
+            return;
+        }
+        
+        List<Map.Entry<String, IndexEntry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        
+        for (Map.Entry<String, IndexEntry> e : entries) {
+            if (usedBytes <= budgetBytes) {
+                break;
+            }
+            
+            try {
+                Files.deleteIfExists(folder.resolve(e.getKey()));
+            } catch (IOException ex) {
+                Logger.getLogger(DiskRenderCache.class.getName()).log(Level.WARNING, null, ex);
+                continue;
+            }
+            
+            index.remove(e.getKey());
+            usedBytes -= e.getValue().size;
+        }
+    }
+    
+    // Builds the index on first use, so startup doesn't wait for it.
+    private Map<String, IndexEntry> index() {
+        if (index != null) {
+            return index;
+        }
+        
+        index = new HashMap<>();
+        
+        try {
+            Files.createDirectories(folder);
+            
+            try (DirectoryStream<Path> versions = Files.newDirectoryStream(root)) {
+                for (Path version : versions) {
+                    if (!version.equals(folder)) {
+                        deleteFolder(version);
+                    }
+                }
+            }
+            
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+                for (Path file : files) {
+                    // Left over from a crash in the middle of put().
+                    if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        Files.deleteIfExists(file);
+                        continue;
+                    }
+                    
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    index.put(file.getFileName().toString(), new IndexEntry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    usedBytes += attrs.size();
+                }
+            }
+            
+            evict();
+        } catch (IOException ex) {
+            Logger.getLogger(DiskRenderCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+        
+        return index;
+    }
+    
+    private static void deleteFolder(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            Files.deleteIfExists(folder);
+            return;
+        }
+        
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                try {
+                    Files.delete(file);
+                } catch (NoSuchFileException ignored) {
+                }
+            }
+        }
+        
+        Files.deleteIfExists(folder);
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "DiskRenderCache: " + (index == null ? 0 : index.size()) + " files, " 
+             + (usedBytes / 1024) + " of " + (budgetBytes / 1024) + " KB";
+    }
+}
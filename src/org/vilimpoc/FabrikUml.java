@@ -39,6 +39,10 @@ public class FabrikUml extends Application {
     
     @Override
     public void start(Stage stage) throws Exception {
+        // Before any tab asks for a render.
+        RenderWorkers.start();
+        Warmup.start();
+        
         ResourceBundle bundle = ResourceBundle.getBundle("org.vilimpoc.resources.FabrikUml");
         Parent root = FXMLLoader.load(getClass().getResource("Main.fxml"), bundle);
         
@@ -49,13 +53,19 @@ public class FabrikUml extends Application {
         stage.getIcons().add(new Image(getClass().getResourceAsStream("resources/icon.png")));
 
         stage.show();
+        
+        Metrics.registerMBean();
     }
 
     @Override
     public void stop() throws Exception {
         // Without this, the program will not terminate clearly, as the executor
         // threads aren't cleaned up.
-        TabController.shutdownAll();
+        Workers.shutdown();
+        RenderWorkers.shutdown();
+        DirectoryWatcher.shutdown();
+        AutoSaver.flush();
+        Common.flushSettings();
         
         super.stop();
     }
@@ -0,0 +1,133 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Which open tabs include which files, directly or through other includes.
+ * 
+ * Tabs report the files their diagrams include after every render. The 
+ * included files are watched, and when some of them change, each tab which
+ * includes any of them is told once. Render cache keys contain fingerprints 
+ * of the included files, so a tab just has to render again to pick up the
+ * change; tabs which don't include the file keep their renders.
+ * 
+ * FX thread only.
+ */
+class IncludeIndex {
+    
+    private static class Includer {
+        final Set<Path> files;
+        final Runnable  onChange;
+        
+        Includer(Set<Path> files, Runnable onChange) {
+            this.files    = files;
+            this.onChange = onChange;
+        }
+    }
+    
+    // Tab -> what it includes.
+    private static final Map<Object, Includer> includers = new HashMap<>();
+    
+    // Included file -> the tabs including it.
+    private static final Map<Path, Set<Object>> includedBy = new HashMap<>();
+    
+    private static final Consumer<Set<Path>> listener = IncludeIndex::filesChanged;
+    
+    private IncludeIndex() {
+    }
+    
+    /**
+     * @param tab      identifies the tab.
+     * @param files    everything the tab's diagrams include now.
+     * @param onChange called when any of the files changes.
+     */
+    static void update(Object tab, Set<Path> files, Runnable onChange) {
+        Includer old = includers.get(tab);
+        
+        if (old != null && old.files.equals(files)) {
+            includers.put(tab, new Includer(old.files, onChange));
+            return;
+        }
+        
+        unindex(tab);
+        
+        if (!files.isEmpty()) {
+            includers.put(tab, new Includer(files, onChange));
+            
+            for (Path file : files) {
+                includedBy.computeIfAbsent(file, f -> new HashSet<>()).add(tab);
+            }
+        }
+        
+        DirectoryWatcher.watch(listener, includedBy.keySet());
+    }
+    
+    static void remove(Object tab) {
+        if (unindex(tab)) {
+            DirectoryWatcher.watch(listener, includedBy.keySet());
+        }
+    }
+    
+    private static boolean unindex(Object tab) {
+        Includer old = includers.remove(tab);
+        
+        if (old == null) {
+            return false;
+        }
+        
+        for (Path file : old.files) {
+            Set<Object> tabs = includedBy.get(file);
+            tabs.remove(tab);
+            
+            if (tabs.isEmpty()) {
+                includedBy.remove(file);
+            }
+        }
+        
+        return true;
+    }
+    
+    private static void filesChanged(Set<Path> files) {
+        Logger.getLogger(IncludeIndex.class.getName()).log(Level.FINE, "Included files changed: {0}", files);
+        
+        // Each tab once, however many of its includes changed.
+        Set<Object> affected = new LinkedHashSet<>();
+        for (Path file : files) {
+            affected.addAll(includedBy.getOrDefault(file, Collections.emptySet()));
+        }
+        
+        for (Object tab : affected) {
+            includers.get(tab).onChange.run();
+        }
+    }
+}
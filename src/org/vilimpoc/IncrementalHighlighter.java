@@ -0,0 +1,303 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import javafx.concurrent.Task;
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.StyleSpansBuilder;
+import org.fxmisc.richtext.model.TwoDimensional.Bias;
+
+/**
+ * Syntax highlighting which only re-lexes the paragraphs touched by an edit.
+ * 
+ * PlantUmlLexer works one paragraph at a time, and the only state it carries
+ * from one paragraph to the next is whether it is inside a block comment. That
+ * state is remembered for the end of every paragraph. After an edit, lexing 
+ * starts at the first edited paragraph and stops at the first paragraph past
+ * the edit whose end state didn't change, since nothing after it can have 
+ * changed either. Only paragraphs whose style spans actually differ are 
+ * restyled.
+ * 
+ * Loading a file, big pastes and edits which cascade too far (e.g. opening a
+ * block comment at the top of a long file) fall back to lexing the whole 
+ * document on the executor instead.
+ * 
+ * All methods must be called from the FX thread.
+ */
+class IncrementalHighlighter {
+    
+    private static final int STATE_UNKNOWN = -1;
+    
+    // Beyond this, lexing in the background beats blocking the FX thread.
+    private static final int MAX_INCREMENTAL_PARAGRAPHS = 500;
+    
+    private static final class FullPass {
+        final StyleSpans<Collection<String>> spans;
+        final int[] states;
+        
+        FullPass(StyleSpans<Collection<String>> spans, int[] states) {
+            this.spans  = spans;
+            this.states = states;
+        }
+    }
+    
+    private final CodeArea area;
+    private final Executor executor;
+    private final Metrics  metrics;
+    
+    // End state of each paragraph, valid for the first stateCount entries.
+    private int[] states = new int[0];
+    private int   stateCount;
+    
+    // Paragraphs edited since the last highlight(), inclusive.
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo   = -1;
+    
+    private boolean        fullPassNeeded = true;
+    private Task<FullPass> fullPass;
+    
+    IncrementalHighlighter(CodeArea area, Executor executor, Metrics metrics) {
+        this.area     = area;
+        this.executor = executor;
+        this.metrics  = metrics;
+    }
+    
+    /**
+     * Keeps track of which paragraphs an edit touched. Call for every single
+     * change, before the next one happens.
+     */
+    void textChanged(PlainTextChange change) {
+        // Its snapshot of the text is out of date now.
+        if (fullPass != null) {
+            fullPass.cancel();
+            fullPass = null;
+            fullPassNeeded = true;
+        }
+        
+        if (fullPassNeeded) {
+            return;
+        }
+        
+        int removedLines  = countLines(change.getRemoved());
+        int insertedLines = countLines(change.getInserted());
+        
+        if (removedLines + insertedLines > MAX_INCREMENTAL_PARAGRAPHS) {
+            fullPassNeeded = true;
+            return;
+        }
+        
+        int first = area.offsetToPosition(change.getPosition(), Bias.Forward).getMajor();
+        int delta = insertedLines - removedLines;
+        
+        // Paragraphs first+1 .. first+removedLines were merged into first,
+        // and insertedLines new ones follow it. The end state of first is 
+        // unknown too, since its text changed.
+        replaceStates(first, removedLines + 1, insertedLines + 1);
+        
+        // Shift a range left over from earlier edits; there's none if 
+        // dirtyTo is still -1.
+        if (dirtyTo >= 0) {
+            if (dirtyTo > first) {
+                dirtyTo = Math.max(first, dirtyTo + delta);
+            }
+            if (dirtyFrom > first) {
+                dirtyFrom = dirtyFrom > first + removedLines ? dirtyFrom + delta : first;
+            }
+        }
+        
+        dirtyFrom = Math.min(dirtyFrom, first);
+        dirtyTo   = Math.max(dirtyTo,   first + insertedLines);
+    }
+    
+    /**
+     * Restyles everything edited since the last call.
+     */
+    void highlight() {
+        if (fullPassNeeded) {
+            startFullPass();
+            return;
+        }
+        
+        if (dirtyTo < 0) {
+            return;
+        }
+        
+        int count = area.getParagraphs().size();
+        int from  = Math.min(dirtyFrom, count - 1);
+        int to    = Math.min(dirtyTo,   count - 1);
+        
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo   = -1;
+        
+        long startTime = System.nanoTime();
+        
+        int state = from == 0 ? PlantUmlLexer.STATE_NORMAL : states[from - 1];
+        
+        for (int p = from; p < count; p++) {
+            if (p - from > MAX_INCREMENTAL_PARAGRAPHS) {
+                startFullPass();
+                return;
+            }
+            
+            StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
+            String text = area.getParagraph(p).getText();
+            
+            int end = PlantUmlLexer.lex(text, 0, text.length(), state, spansBuilder);
+            StyleSpans<Collection<String>> spans = spansBuilder.create();
+            
+            if (!spans.equals(area.getParagraph(p).getStyleSpans())) {
+                area.setStyleSpans(p, 0, spans);
+            }
+            
+            int previous = states[p];
+            states[p] = end;
+            state = end;
+            
+            if (p >= to && end == previous) {
+                break;
+            }
+        }
+        
+        metrics.record(Metrics.Stage.HIGHLIGHT, System.nanoTime() - startTime);
+    }
+    
+    private void startFullPass() {
+        if (fullPass != null) {
+            return;
+        }
+        
+        String text = area.getText();
+        
+        Task<FullPass> task = new Task<FullPass>() {
+            @Override
+            protected FullPass call() throws Exception {
+                long startTime = System.nanoTime();
+                
+                int[] ends = new int[countLines(text) + 1];
+                FullPass result = new FullPass(computeHighlighting(text, ends), ends);
+                
+                metrics.record(Metrics.Stage.HIGHLIGHT, System.nanoTime() - startTime);
+                return result;
+            }
+        };
+        
+        task.setOnSucceeded(e -> {
+            if (task != fullPass) {
+                return;
+            }
+            
+            fullPass = null;
+            fullPassNeeded = false;
+            
+            states     = task.getValue().states;
+            stateCount = states.length;
+            dirtyFrom  = Integer.MAX_VALUE;
+            dirtyTo    = -1;
+            
+            area.setStyleSpans(0, task.getValue().spans);
+        });
+        
+        task.setOnFailed(e -> {
+            task.getException().printStackTrace();
+            
+            if (task == fullPass) {
+                fullPass = null;
+            }
+        });
+        
+        fullPass = task;
+        executor.execute(task);
+    }
+    
+    /**
+     * Drops the full pass in flight, if any.
+     */
+    void cancel() {
+        if (fullPass != null) {
+            fullPass.cancel();
+            fullPass = null;
+        }
+    }
+    
+    private void replaceStates(int at, int removed, int inserted) {
+        int newCount = stateCount - removed + inserted;
+        
+        if (newCount > states.length) {
+            states = Arrays.copyOf(states, Math.max(newCount, states.length * 2));
+        }
+        
+        System.arraycopy(states, at + removed, states, at + inserted, stateCount - at - removed);
+        Arrays.fill(states, at, at + inserted, STATE_UNKNOWN);
+        
+        stateCount = newCount;
+    }
+    
+    private static int countLines(String s) {
+        int lines = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+    
+    /**
+     * Highlights a whole document.
+     * 
+     * @param ends if not null, receives the lexer state at the end of every 
+     *             paragraph. Needs one entry per paragraph.
+     */
+    static StyleSpans<Collection<String>> computeHighlighting(String text, int[] ends) {
+        StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
+        
+        int state = PlantUmlLexer.STATE_NORMAL;
+        int start = 0;
+        int paragraph = 0;
+        
+        while (true) {
+            int newline = text.indexOf('\n', start);
+            int end = newline < 0 ? text.length() : newline;
+            
+            state = PlantUmlLexer.lex(text, start, end, state, spansBuilder);
+            
+            if (ends != null) {
+                ends[paragraph] = state;
+            }
+            paragraph++;
+            
+            if (newline < 0) {
+                break;
+            }
+            
+            spansBuilder.add(PlantUmlLexer.NONE, 1);
+            start = newline + 1;
+        }
+        
+        return spansBuilder.create();
+    }
+}
@@ -24,10 +24,14 @@ package org.vilimpoc;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
@@ -57,9 +61,19 @@ public class MainController implements Initializable {
     private Label   elapsedTimeMs;
 
     private int     untitledId = 0;
+    
+    // Tab property holding the file contents of a Tab not yet materialized.
+    private static final String PENDING_DATA = "pendingData";
 
     @Override
     public void initialize(URL url, ResourceBundle rb) {    
+        // Show the timings of the selected tab in the status bar.
+        Metrics.setListener(m -> Platform.runLater(() -> {
+            if (m == selectedMetrics()) {
+                elapsedTimeMs.setText(m.summary());
+            }
+        }));
+        
         // Set up change listener.
         tabPane.getTabs().addListener(new ListChangeListener<Tab>() {
             @Override
@@ -69,17 +83,91 @@ public class MainController implements Initializable {
             }
         });
         
-        // TODO: Recreate Window with open all previous files in Tabs
+        // Recreate all previously open tabs, but only build the one shown.
         LinkedList<TabModel> models = Common.loadTabConfig();
-
+        List<Tab> restored = new ArrayList<>(models.size());
+        
         for (TabModel model : models) {
-            createNewTab(model);
+            if (!model.backingFile.exists()) {
+                System.err.println("File does not exist, will not open new editing tab.");
+                continue;
+            }
+            
+            restored.add(createPlaceholderTab(model));
         }
-
+        
+        tabPane.getTabs().addAll(restored);
+        tabPane.getSelectionModel().selectLast();
+        
+        tabPane.getSelectionModel().selectedItemProperty().addListener((observable, oldTab, newTab) -> {
+            if (newTab != null) {
+                materialize(newTab);
+            }
+            
+            Metrics m = selectedMetrics();
+            elapsedTimeMs.setText(m != null ? m.summary() : "");
+        });
+        
         // If there were no tabs restored, then create one untitled tab.
-        if (models.isEmpty()) {
+        if (restored.isEmpty()) {
             createUntitledTab();
         }
+        else {
+            materialize(tabPane.getSelectionModel().getSelectedItem());
+        }
+    }
+    
+    /**
+     * @return a Tab with just a title, which starts reading its file in the
+     *         background. materialize() builds the rest.
+     */
+    private Tab createPlaceholderTab(TabModel tabModel) {
+        Tab tab = new Tab(tabModel.tabText);
+        tab.setUserData(tabModel);
+        
+        // Files of all restored tabs are read at once; the shown one first.
+        tab.getProperties().put(PENDING_DATA, CompletableFuture.supplyAsync(
+            () -> TabController.readBackingFile(tabModel), 
+            Workers.executor(Workers.Lane.IO, tab::isSelected)));
+        
+        return tab;
+    }
+    
+    /**
+     * Builds the editor, highlighting and preview of a placeholder Tab, the
+     * first time it's shown.
+     */
+    private void materialize(Tab tab) {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<String> data = (CompletableFuture<String>) tab.getProperties().remove(PENDING_DATA);
+        
+        // Already built.
+        if (data == null) {
+            return;
+        }
+        
+        try {
+            FXMLLoader loader = new FXMLLoader(getClass().getResource("Tab.fxml"));
+            loader.setRoot(tab);
+            loader.load();
+            
+            TabController tabController = loader.<TabController>getController();
+            TabModel tabModel = (TabModel) tab.getUserData();
+            
+            data.thenAcceptAsync(text -> {
+                // Closed before the file was read.
+                if (tabPane.getTabs().contains(tab)) {
+                    tabController.setTabModel(tabModel, text);
+                }
+            }, Platform::runLater);
+        } catch (IOException ex) {
+            Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    private Metrics selectedMetrics() {
+        Tab tab = tabPane.getSelectionModel().getSelectedItem();
+        return tab != null ? (Metrics) tab.getProperties().get(Metrics.class) : null;
     }
     
     @FXML
@@ -107,6 +195,11 @@ public class MainController implements Initializable {
             }
             tabPane.getTabs().remove(tab);
         }
+        else
+        if (Common.LIVE.match(e)) {
+            Common.setLivePreview(!Common.isLivePreview());
+            e.consume();
+        }
     }
     
     protected void createNewTab(TabModel tabModel) {
@@ -115,27 +208,11 @@ public class MainController implements Initializable {
             return;
         }
         
-        try {
-            FXMLLoader loader = new FXMLLoader(
-                getClass().getResource(
-                    "Tab.fxml"
-                )
-            );
-
-            Tab tab = (Tab) loader.load();
-            TabController tabController = loader.<TabController>getController();
-            
-            // System.out.println(tabModel);
-            
-            tab.setText(tabModel.tabText);
-            tab.setUserData(tabModel);
-            tabController.setTabModel(tabModel);
-            
-            tabPane.getTabs().add(tab);
-            tabPane.getSelectionModel().select(tab);
-        } catch (IOException ex) {
-            Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
-        }        
+        // Selecting it builds it.
+        Tab tab = createPlaceholderTab(tabModel);
+        
+        tabPane.getTabs().add(tab);
+        tabPane.getSelectionModel().select(tab);
     }
     
     private void createUntitledTab() {
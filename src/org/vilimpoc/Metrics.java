@@ -0,0 +1,223 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Timings of the work done for one tab, with rolling percentiles per stage.
+ * 
+ * Every tab registers its Metrics while it is open. All of them are visible 
+ * over JMX as org.vilimpoc:type=Metrics (e.g. in jconsole or VisualVM), to 
+ * find the diagrams which are slow to render. Safe to use from any thread.
+ */
+class Metrics {
+    
+    enum Stage {
+        // Building PlantUML's model of the diagram from the source.
+        PARSE,
+        // PlantUML's layout plus encoding the image, which it does in one go.
+        RENDER,
+        // Turning the encoded image into a JavaFX Image.
+        DECODE,
+        // Syntax highlighting, both incremental and full passes.
+        HIGHLIGHT
+    }
+    
+    // Percentiles are over this many of the most recent samples.
+    private static final int WINDOW = 100;
+    
+    static final class Histogram {
+        private final long[] samples = new long[WINDOW];
+        private int  next;
+        private long count;
+        private long last;
+        
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % WINDOW;
+            count++;
+            last = nanos;
+        }
+        
+        synchronized Snapshot snapshot() {
+            int n = (int) Math.min(count, WINDOW);
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            
+            return n == 0 
+                ? new Snapshot(0, 0, 0, 0, 0)
+                : new Snapshot(count, last, sorted[(n - 1) / 2], sorted[(n * 95 - 1) / 100], sorted[n - 1]);
+        }
+    }
+    
+    static final class Snapshot {
+        final long count;
+        final long lastNanos;
+        final long p50Nanos;
+        final long p95Nanos;
+        final long maxNanos;
+        
+        Snapshot(long count, long lastNanos, long p50Nanos, long p95Nanos, long maxNanos) {
+            this.count     = count;
+            this.lastNanos = lastNanos;
+            this.p50Nanos  = p50Nanos;
+            this.p95Nanos  = p95Nanos;
+            this.maxNanos  = maxNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return ms(lastNanos) + "ms (p50 " + ms(p50Nanos) + ", p95 " + ms(p95Nanos) + ", max " + ms(maxNanos) + ")";
+        }
+    }
+    
+    static long ms(long nanos) {
+        return nanos / 1000000;
+    }
+    
+    private static final List<Metrics> registered = Collections.synchronizedList(new ArrayList<>());
+    
+    private static volatile Consumer<Metrics> listener;
+    
+    private final EnumMap<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+    
+    private volatile String name;
+    
+    Metrics(String name) {
+        this.name = name;
+        
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    void setName(String name) {
+        this.name = name;
+    }
+    
+    void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+        
+        Consumer<Metrics> l = listener;
+        if (l != null) {
+            l.accept(this);
+        }
+    }
+    
+    Snapshot snapshot(Stage stage) {
+        return histograms.get(stage).snapshot();
+    }
+    
+    /**
+     * @return a one-line summary, for the status bar.
+     */
+    String summary() {
+        return "Parse "     + snapshot(Stage.PARSE)     + ", "
+             + "Render "    + snapshot(Stage.RENDER)    + ", "
+             + "Decode "    + snapshot(Stage.DECODE)    + ", "
+             + "Highlight " + snapshot(Stage.HIGHLIGHT);
+    }
+    
+    static void register(Metrics metrics) {
+        registered.add(metrics);
+    }
+    
+    static void unregister(Metrics metrics) {
+        registered.remove(metrics);
+    }
+    
+    /**
+     * @param l called after every recorded sample, on the recording thread.
+     */
+    static void setListener(Consumer<Metrics> l) {
+        listener = l;
+    }
+    
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new MetricsMXBean() {
+                    @Override
+                    public Map<String, String> getStages() {
+                        Map<String, String> stages = new LinkedHashMap<>();
+                        
+                        synchronized (registered) {
+                            for (Metrics m : registered) {
+                                for (Stage stage : Stage.values()) {
+                                    stages.put(m.getName() + " " + stage, m.snapshot(stage).toString());
+                                }
+                            }
+                        }
+                        
+                        return stages;
+                    }
+                    
+                    @Override
+                    public List<String> getSlowestDiagrams() {
+                        List<Metrics> byP95;
+                        
+                        synchronized (registered) {
+                            byP95 = new ArrayList<>(registered);
+                        }
+                        
+                        byP95.sort((a, b) -> Long.compare(b.snapshot(Stage.RENDER).p95Nanos, a.snapshot(Stage.RENDER).p95Nanos));
+                        
+                        List<String> names = new ArrayList<>();
+                        for (Metrics m : byP95) {
+                            names.add(m.getName() + ": " + m.snapshot(Stage.RENDER));
+                        }
+                        return names;
+                    }
+                    
+                    @Override
+                    public String getRenderCache() {
+                        return RenderPipeline.cacheStatistics();
+                    }
+                    
+                    @Override
+                    public String getPreviewImages() {
+                        return PreviewImages.statistics();
+                    }
+                },
+                new ObjectName("org.vilimpoc:type=Metrics"));
+        } catch (Exception ex) {
+            // Not being able to monitor is no reason not to start.
+            Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
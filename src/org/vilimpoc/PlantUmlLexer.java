@@ -0,0 +1,370 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.fxmisc.richtext.model.StyleSpansBuilder;
+
+/**
+ * Single-pass, table-driven PlantUML lexer for syntax highlighting.
+ * 
+ * Produces the same style classes as matching PlantUmlSyntax.PATTERN, but 
+ * looks at every character only once: a character class table decides what 
+ * kind of token can start at a position, and words are looked up in a 
+ * perfect hash table of all keywords, comparing in place against the text.
+ * Style classes are shared constants, so the only allocations are the spans
+ * handed to the StyleSpansBuilder.
+ * 
+ * Like IncrementalHighlighter, it works on one paragraph at a time, carrying
+ * over whether the paragraph ends inside a block comment.
+ */
+class PlantUmlLexer {
+    
+    static final Collection<String> AT        = Collections.singleton("at");
+    static final Collection<String> PREPROC   = Collections.singleton("preproc");
+    static final Collection<String> TYPE      = Collections.singleton("type");
+    static final Collection<String> KEYWORD   = Collections.singleton("keyword");
+    static final Collection<String> PAREN     = Collections.singleton("paren");
+    static final Collection<String> BRACE     = Collections.singleton("brace");
+    static final Collection<String> BRACKET   = Collections.singleton("bracket");
+    static final Collection<String> SEMICOLON = Collections.singleton("semicolon");
+    static final Collection<String> STRING    = Collections.singleton("string");
+    static final Collection<String> COMMENT   = Collections.singleton("comment");
+    static final Collection<String> NONE      = Collections.emptyList();
+    
+    // Lexer state at the end of a paragraph.
+    static final int STATE_NORMAL  = 0;
+    static final int STATE_COMMENT = 1; // Inside /* ... */
+    
+    // Character classes, looked up in CHAR_CLASS for ASCII.
+    private static final byte OTHER     = 0;
+    private static final byte WORD      = 1; // Letters, digits and _, as for regex \b
+    private static final byte DIRECTIVE = 2; // @ and !
+    private static final byte QUOTE     = 3;
+    private static final byte SLASH     = 4;
+    private static final byte SINGLE    = 5; // One character tokens.
+    
+    private static final byte[] CHAR_CLASS = new byte[128];
+    
+    // Style of the SINGLE characters.
+    private static final Collection<?>[] SINGLE_STYLE = new Collection<?>[128];
+    
+    // Perfect hash of all keywords, built with "hash and displace": a first
+    // hash picks a bucket, and the bucket's displacement picks the seed for
+    // a second hash which lands every word in its own slot. So a lookup is 
+    // always exactly one string comparison.
+    private static final String[]        WORDS;
+    private static final Collection<?>[] WORD_STYLES;
+    private static final int             WORDS_MASK;
+    private static final int[]           DISPLACEMENTS;
+    private static final int             BUCKETS_MASK;
+    private static final int             MAX_WORD_LENGTH;
+    
+    static {
+        for (char c = 'a'; c <= 'z'; c++) CHAR_CLASS[c] = WORD;
+        for (char c = 'A'; c <= 'Z'; c++) CHAR_CLASS[c] = WORD;
+        for (char c = '0'; c <= '9'; c++) CHAR_CLASS[c] = WORD;
+        CHAR_CLASS['_']  = WORD;
+        CHAR_CLASS['@']  = DIRECTIVE;
+        CHAR_CLASS['!']  = DIRECTIVE;
+        CHAR_CLASS['"']  = QUOTE;
+        CHAR_CLASS['/']  = SLASH;
+        
+        single("()", PAREN);
+        single("{}", BRACE);
+        single("[]", BRACKET);
+        single(";",  SEMICOLON);
+        
+        // Same precedence as the named groups in PlantUmlSyntax.PATTERN, 
+        // e.g. "package" is both a type and a keyword, and ends up a type.
+        LinkedHashMap<String, Collection<String>> words = new LinkedHashMap<>();
+        for (String w : PlantUmlSyntax.PUML_ATS)      words.putIfAbsent(w, AT);
+        for (String w : PlantUmlSyntax.PUML_PREPROCS) words.putIfAbsent(w, PREPROC);
+        for (String w : PlantUmlSyntax.PUML_TYPES)    words.putIfAbsent(w, TYPE);
+        for (String w : PlantUmlSyntax.PUML_KEYWORDS) words.putIfAbsent(w, KEYWORD);
+        
+        // Multi-word keywords can never match as a whole in PATTERN either, 
+        // since their first word is a keyword of its own.
+        words.keySet().removeIf(w -> w.indexOf(' ') >= 0);
+        
+        // Half full, with two words per bucket on average.
+        int size    = Integer.highestOneBit(words.size() * 2) * 2;
+        int buckets = size / 4;
+        
+        List<List<String>> byBucket = new ArrayList<>();
+        for (int b = 0; b < buckets; b++) {
+            byBucket.add(new ArrayList<>());
+        }
+        for (String w : words.keySet()) {
+            byBucket.get(hash(w, 0, w.length(), 0) & (buckets - 1)).add(w);
+        }
+        
+        // Place the biggest buckets first, while there's the most room.
+        List<List<String>> order = new ArrayList<>(byBucket);
+        order.sort((x, y) -> y.size() - x.size());
+        
+        String[] table = new String[size];
+        int[] displacements = new int[buckets];
+        
+        for (List<String> bucket : order) {
+            if (bucket.isEmpty()) {
+                break;
+            }
+            
+            int[] slots = new int[bucket.size()];
+            
+            for (int d = 1; ; d++) {
+                boolean free = true;
+                
+                for (int i = 0; i < slots.length && free; i++) {
+                    String w = bucket.get(i);
+                    slots[i] = hash(w, 0, w.length(), d) & (size - 1);
+                    free = table[slots[i]] == null;
+                    
+                    for (int j = 0; j < i && free; j++) {
+                        free = slots[j] != slots[i];
+                    }
+                }
+                
+                if (free) {
+                    for (int i = 0; i < slots.length; i++) {
+                        table[slots[i]] = bucket.get(i);
+                    }
+                    displacements[byBucket.indexOf(bucket)] = d;
+                    break;
+                }
+            }
+        }
+        
+        WORDS         = table;
+        WORD_STYLES   = new Collection<?>[size];
+        WORDS_MASK    = size - 1;
+        DISPLACEMENTS = displacements;
+        BUCKETS_MASK  = buckets - 1;
+        
+        for (int slot = 0; slot < size; slot++) {
+            if (table[slot] != null) {
+                WORD_STYLES[slot] = words.get(table[slot]);
+            }
+        }
+        
+        int longest = 0;
+        for (String w : words.keySet()) {
+            longest = Math.max(longest, w.length());
+        }
+        MAX_WORD_LENGTH = longest;
+    }
+    
+    private static void single(String chars, Collection<String> style) {
+        for (char c : chars.toCharArray()) {
+            CHAR_CLASS[c]   = SINGLE;
+            SINGLE_STYLE[c] = style;
+        }
+    }
+    
+    // FNV-1a, with the seed mixed in up front.
+    private static int hash(CharSequence text, int from, int to, int seed) {
+        int h = 0x811C9DC5 ^ (seed * 0x9E3779B9);
+        for (int i = from; i < to; i++) {
+            h = (h ^ text.charAt(i)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    private static byte charClass(char c) {
+        if (c < 128) {
+            return CHAR_CLASS[c];
+        }
+        
+        // Java's \b counts all Unicode letters as part of a word.
+        return Character.isLetterOrDigit(c) ? WORD : OTHER;
+    }
+    
+    private PlantUmlLexer() {
+    }
+    
+    /**
+     * @return the style of text[from, to), or null if it is not a keyword.
+     */
+    @SuppressWarnings("unchecked")
+    static Collection<String> lookup(CharSequence text, int from, int to) {
+        // Don't bother hashing long identifiers.
+        if (to - from > MAX_WORD_LENGTH) {
+            return null;
+        }
+        
+        int d = DISPLACEMENTS[hash(text, from, to, 0) & BUCKETS_MASK];
+        if (d == 0) {
+            return null;
+        }
+        
+        int slot = hash(text, from, to, d) & WORDS_MASK;
+        String word = WORDS[slot];
+        
+        if (word == null || word.length() != to - from) {
+            return null;
+        }
+        
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) != text.charAt(from + i)) {
+                return null;
+            }
+        }
+        
+        return (Collection<String>) WORD_STYLES[slot];
+    }
+    
+    private static int wordEnd(CharSequence text, int from, int to) {
+        while (from < to && charClass(text.charAt(from)) == WORD) {
+            from++;
+        }
+        return from;
+    }
+    
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int indexOfCommentEnd(CharSequence text, int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if (text.charAt(i) == '*' && text.charAt(i + 1) == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Lexes the paragraph text[from, to), which must not contain a newline.
+     * Adds exactly to - from characters worth of spans.
+     * 
+     * @return the lexer state at the end of the paragraph.
+     */
+    @SuppressWarnings("unchecked")
+    static int lex(CharSequence text, int from, int to, int state, StyleSpansBuilder<Collection<String>> spansBuilder) {
+        // Start of the pending run of unstyled characters.
+        int plain = from;
+        int i     = from;
+        
+        if (state == STATE_COMMENT) {
+            int close = indexOfCommentEnd(text, from, to);
+            
+            if (close < 0) {
+                spansBuilder.add(COMMENT, to - from);
+                return STATE_COMMENT;
+            }
+            
+            i = plain = close + 2;
+            spansBuilder.add(COMMENT, i - from);
+        }
+        
+        state = STATE_NORMAL;
+        
+        while (i < to) {
+            char c = text.charAt(i);
+            
+            Collection<String> style = null;
+            int end = i + 1;
+            
+            switch (charClass(c)) {
+                case WORD:
+                    end = wordEnd(text, i, to);
+                    style = lookup(text, i, end);
+                    break;
+                
+                case DIRECTIVE:
+                    // "@" or "!" on its own is left plain, and the word after
+                    // it is looked at next time around.
+                    int directiveEnd = wordEnd(text, i + 1, to);
+                    style = lookup(text, i, directiveEnd);
+                    if (style != null) {
+                        end = directiveEnd;
+                    }
+                    break;
+                    
+                case SINGLE:
+                    style = (Collection<String>) SINGLE_STYLE[c];
+                    break;
+                    
+                case QUOTE:
+                    int close = i + 1;
+                    while (close < to && text.charAt(close) != '"') {
+                        // Skip over escaped characters.
+                        close += text.charAt(close) == '\\' ? 2 : 1;
+                    }
+                    
+                    // Unterminated strings are left plain.
+                    if (close < to) {
+                        style = STRING;
+                        end = close + 1;
+                    }
+                    break;
+                    
+                case SLASH:
+                    if (i + 1 < to && text.charAt(i + 1) == '/') {
+                        style = COMMENT;
+                        end = to;
+                    }
+                    else
+                    if (i + 1 < to && text.charAt(i + 1) == '*') {
+                        style = COMMENT;
+                        
+                        int commentEnd = indexOfCommentEnd(text, i + 2, to);
+                        if (commentEnd < 0) {
+                            state = STATE_COMMENT;
+                            end = to;
+                        }
+                        else {
+                            end = commentEnd + 2;
+                        }
+                    }
+                    break;
+                    
+                default:
+                    break;
+            }
+            
+            if (style != null) {
+                if (i > plain) {
+                    spansBuilder.add(NONE, i - plain);
+                }
+                spansBuilder.add(style, end - i);
+                plain = end;
+            }
+            
+            i = end;
+        }
+        
+        spansBuilder.add(NONE, to - plain);
+        
+        return state;
+    }
+}
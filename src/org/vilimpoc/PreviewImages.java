@@ -0,0 +1,124 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import javafx.scene.image.Image;
+
+/**
+ * Decoded preview images held by the open tabs.
+ * 
+ * A decoded diagram takes 4 bytes per pixel, easily 100 MB for a large class
+ * diagram, and every tab used to keep its own. Tabs report each image they 
+ * show, and while the total is over Common.getPreviewImageBytes(), the tabs 
+ * hidden the longest are told to release theirs. They drop it from the 
+ * RenderCache too, keep the encoded bytes, and decode them again when shown
+ * unless a render put the image back in the cache meanwhile. Tabs being 
+ * shown are never asked, so the budget can be exceeded by them alone.
+ * 
+ * FX thread only.
+ */
+class PreviewImages {
+    
+    private static class Held {
+        final long            bytes;
+        final BooleanSupplier showing;
+        final Runnable        release;
+        
+        Held(long bytes, BooleanSupplier showing, Runnable release) {
+            this.bytes   = bytes;
+            this.showing = showing;
+            this.release = release;
+        }
+    }
+    
+    // Access-ordered, so iteration starts at the tab used the longest ago.
+    private static final Map<Object, Held> held = new LinkedHashMap<>(16, 0.75f, true);
+    
+    private static volatile long usedBytes;
+    
+    private static final long budgetBytes = Common.getPreviewImageBytes();
+    
+    private PreviewImages() {
+    }
+    
+    /**
+     * @param tab     identifies the tab.
+     * @param bytes   size of the decoded image.
+     * @param showing whether the tab is on screen.
+     * @param release drops the tab's decoded image.
+     */
+    static void hold(Object tab, long bytes, BooleanSupplier showing, Runnable release) {
+        Held old = held.put(tab, new Held(bytes, showing, release));
+        
+        if (old != null) {
+            usedBytes -= old.bytes;
+        }
+        usedBytes += bytes;
+        
+        trim();
+    }
+    
+    /**
+     * The tab has dropped its image, or closed.
+     */
+    static void release(Object tab) {
+        Held old = held.remove(tab);
+        
+        if (old != null) {
+            usedBytes -= old.bytes;
+        }
+    }
+    
+    /**
+     * Releases images over the budget, call when a tab was hidden.
+     */
+    static void trim() {
+        Iterator<Held> it = held.values().iterator();
+        
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Held eldest = it.next();
+            
+            if (!eldest.showing.getAsBoolean()) {
+                usedBytes -= eldest.bytes;
+                it.remove();
+                eldest.release.run();
+            }
+        }
+    }
+    
+    static long sizeInBytes(Image image) {
+        // Decoded images are 32-bit ARGB.
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+    
+    /**
+     * Only approximate off the FX thread, which is good enough for JMX.
+     */
+    static String statistics() {
+        return "PreviewImages: " + held.size() + " decoded, " 
+             + (usedBytes / 1024) + " of " + (budgetBytes / 1024) + " KB";
+    }
+}
@@ -0,0 +1,164 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.scene.image.Image;
+
+/**
+ * In-memory LRU cache of finished renders, keyed by Renderer.key().
+ * 
+ * Holds both the encoded bytes and the decoded Image, so a hit skips PlantUML
+ * and the decode. SVG renders are held as the text the WebView takes. The 
+ * total size of all entries is kept under a byte budget, evicting the least 
+ * recently used entries first. Safe to use from any thread.
+ */
+class RenderCache {
+
+    /**
+     * Either an encoded and decoded bitmap, or the text of a vector image.
+     */
+    static class Entry {
+        final byte[] data;
+        final Image  image;
+        final String svg;
+        
+        Entry(byte[] data, Image image) {
+            this.data  = data;
+            this.image = image;
+            this.svg   = null;
+        }
+        
+        Entry(String svg) {
+            this.data  = null;
+            this.image = null;
+            this.svg   = svg;
+        }
+        
+        boolean isError() {
+            return image != null ? image.isError() : svg == null;
+        }
+        
+        long sizeInBytes() {
+            if (svg != null) {
+                return svg.length() * 2L;
+            }
+            
+            // Decoded images are 32-bit ARGB.
+            return data.length + (long) image.getWidth() * (long) image.getHeight() * 4;
+        }
+    }
+    
+    private final long budgetBytes;
+    
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    
+    private long usedBytes;
+    
+    private final AtomicLong hits   = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    RenderCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+    
+    synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        
+        if (entry != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        
+        return entry;
+    }
+    
+    /**
+     * Unlike get(), doesn't count as a hit or miss, nor as a use.
+     */
+    synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+    
+    synchronized void put(String key, Entry entry) {
+        long size = entry.sizeInBytes();
+        
+        // Would evict everything else and still not fit.
+        if (size > budgetBytes) {
+            return;
+        }
+        
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            usedBytes -= old.sizeInBytes();
+        }
+        usedBytes += size;
+        
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            
+            if (eldest != entry) {
+                usedBytes -= eldest.sizeInBytes();
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Removes key only if it still maps to the entry of data, not one put 
+     * there by a newer render.
+     */
+    synchronized void remove(String key, byte[] data) {
+        Entry entry = entries.get(key);
+        
+        if (entry != null && entry.data == data) {
+            entries.remove(key);
+            usedBytes -= entry.sizeInBytes();
+        }
+    }
+    
+    long getHits() {
+        return hits.get();
+    }
+    
+    long getMisses() {
+        return misses.get();
+    }
+    
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "RenderCache: " + entries.size() + " entries, " 
+             + (usedBytes / 1024) + " of " + (budgetBytes / 1024) + " KB, "
+             + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
@@ -0,0 +1,158 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+
+/**
+ * Everything besides the source text that changes the rendered output.
+ * 
+ * Immutable, so the same instance can be shared between threads. Anything
+ * added here must also go into toString(), which is part of the cache key.
+ */
+class RenderOptions {
+    
+    static final RenderOptions PNG = new RenderOptions(FileFormat.PNG, 0, false, 0, 0);
+    static final RenderOptions SVG = new RenderOptions(FileFormat.SVG, 0, false, 0, 0);
+    
+    private static final String JAVA_LAYOUT_PRAGMA = "!pragma graphviz_dot jdot";
+    
+    final FileFormat format;
+    
+    // Which image of the source to draw, for sources with several.
+    final int        page;
+    
+    // Lay out class, component, state etc. diagrams with PlantUML's own Java 
+    // port of dot, instead of running the Graphviz dot program.
+    final boolean    javaLayout;
+    
+    // Shrinks the image to fit, if both are above 0.
+    final int        maxWidth;
+    final int        maxHeight;
+    
+    RenderOptions(FileFormat format, int page, boolean javaLayout, int maxWidth, int maxHeight) {
+        this.format     = format;
+        this.page       = page;
+        this.javaLayout = javaLayout;
+        this.maxWidth   = maxWidth;
+        this.maxHeight  = maxHeight;
+    }
+    
+    RenderOptions page(int page) {
+        return page == this.page ? this : new RenderOptions(format, page, javaLayout, maxWidth, maxHeight);
+    }
+    
+    RenderOptions javaLayout(boolean javaLayout) {
+        return javaLayout == this.javaLayout ? this : new RenderOptions(format, page, javaLayout, maxWidth, maxHeight);
+    }
+    
+    /**
+     * @return options for an image no larger than maxWidth x maxHeight, 
+     *         which is cheaper to draw, encode and decode.
+     */
+    RenderOptions fitInto(int maxWidth, int maxHeight) {
+        return new RenderOptions(format, page, javaLayout, maxWidth, maxHeight);
+    }
+    
+    boolean isFitted() {
+        return maxWidth > 0 && maxHeight > 0;
+    }
+    
+    boolean isSvg() {
+        return format == FileFormat.SVG;
+    }
+    
+    FileFormatOption toFileFormatOption() {
+        return new FileFormatOption(format);
+    }
+    
+    /**
+     * @return source, changed as far as needed for these options.
+     */
+    String apply(String source) {
+        StringBuilder directives = new StringBuilder();
+        
+        if (javaLayout) {
+            directives.append(JAVA_LAYOUT_PRAGMA).append('\n');
+        }
+        if (isFitted()) {
+            // Only ever shrinks, and a scale of the source itself wins.
+            directives.append("scale max ").append(maxWidth).append('*').append(maxHeight).append('\n');
+        }
+        
+        if (directives.length() == 0) {
+            return source;
+        }
+        
+        // Directives only count inside a block, so add them to every one.
+        StringBuilder result = new StringBuilder(source.length() + 64);
+        int lineStart = 0;
+        
+        while (lineStart < source.length()) {
+            int lineEnd = source.indexOf('\n', lineStart);
+            lineEnd = lineEnd < 0 ? source.length() : lineEnd + 1;
+            
+            result.append(source, lineStart, lineEnd);
+            
+            int text = lineStart;
+            while (text < lineEnd && Character.isWhitespace(source.charAt(text))) {
+                text++;
+            }
+            
+            if (source.startsWith("@start", text)) {
+                if (lineEnd == source.length() && source.charAt(lineEnd - 1) != '\n') {
+                    result.append('\n');
+                }
+                result.append(directives);
+            }
+            
+            lineStart = lineEnd;
+        }
+        
+        return result.toString();
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RenderOptions)) {
+            return false;
+        }
+        
+        RenderOptions other = (RenderOptions) o;
+        return format == other.format && page == other.page && javaLayout == other.javaLayout
+            && maxWidth == other.maxWidth && maxHeight == other.maxHeight;
+    }
+    
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+    
+    @Override
+    public String toString() {
+        // The defaults keep the keys from before they were options.
+        String name = page == 0 ? format.name() : format.name() + "#" + page;
+        name = javaLayout ? name + "+jdot" : name;
+        return isFitted() ? name + "<" + maxWidth + "x" + maxHeight : name;
+    }
+}
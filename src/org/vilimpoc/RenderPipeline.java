@@ -0,0 +1,525 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+/**
+ * Runs PlantUML renders for one tab in the background.
+ * 
+ * Every call to submit() is a new job which replaces (cancels) the previous 
+ * one, so only the result of the latest edit ever reaches the preview. 
+ * Rendering and PNG decoding both happen on the worker; only the finished 
+ * Image is handed back on the FX thread. With RenderOptions.SVG there is no
+ * decoding at all: the SVG text goes from PlantUML's buffer to the preview.
+ * 
+ * Pages which took long to render last time are also rendered as a draft,
+ * scaled down to the size of the preview pane, on a thread of its own next 
+ * to the full render. The draft takes about half as long, and is shown until
+ * the full render is done.
+ * 
+ * Documents with several @startuml blocks, or newpage, have several pages.
+ * Only the selected page is rendered, then its neighbours are prefetched at
+ * a lower priority, so flipping through the pages is instant.
+ * 
+ * Finished pages are kept in a RenderCache shared by all tabs, so asking 
+ * again for a page that hasn't changed costs only a hash of its block. An 
+ * edit only re-renders the block it touched, or the blocks including a file
+ * that changed.
+ * Renders also go to a DiskRenderCache in the work folder, so restored tabs 
+ * show their previews without waiting for PlantUML.
+ * 
+ * Everything but cacheStatistics() must be called from the FX thread.
+ */
+class RenderPipeline {
+    
+    /**
+     * One rendered page, and where it is in the document.
+     */
+    static class Preview {
+        final RenderCache.Entry entry;
+        final int               page;
+        final int               pageCount;
+        
+        // Every file the document includes.
+        final Set<Path>         includes;
+        
+        // Of entry in the RenderCache, null for drafts.
+        final String            key;
+        
+        Preview(RenderCache.Entry entry, int page, int pageCount, Set<Path> includes, String key) {
+            this.entry     = entry;
+            this.page      = page;
+            this.pageCount = pageCount;
+            this.includes  = includes;
+            this.key       = key;
+        }
+    }
+    
+    private static final RenderCache cache = new RenderCache(Common.getRenderCacheBytes());
+    
+    // Background IO jobs, behind everything anyone is waiting for.
+    private static final Executor diskWriter = Workers.executor(Workers.Lane.IO, () -> false);
+    
+    private static final long DRAFT_IDLE_SECONDS = 30;
+    
+    // One draft at a time, for all tabs. A draft waiting for the thread is 
+    // dropped when a newer one comes along.
+    private static final ThreadPoolExecutor drafts = new ThreadPoolExecutor(
+        1, 1, DRAFT_IDLE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(1),
+        r -> {
+            Thread t = new Thread(r, "FabrikUml-draft");
+            t.setDaemon(true);
+            return t;
+        },
+        new ThreadPoolExecutor.DiscardOldestPolicy());
+    
+    static {
+        drafts.allowCoreThreadTimeOut(true);
+    }
+    
+    private static final DiskRenderCache diskCache = new DiskRenderCache(Common.getRenderCacheFolder(), Common.getDiskCacheBytes());
+    
+    private final Metrics  metrics;
+    private final Executor workers;
+    private final Executor prefetchers;
+    private final Consumer<Preview> onRendered;
+    private final Consumer<String>  onOverBudget;
+    
+    private RenderOptions options = RenderOptions.PNG;
+    private int           page;
+    private File          folder;
+    
+    private Task<Preview> current;
+    
+    // Source, options and page of the last job that was not cancelled.
+    private String        currentSource;
+    private RenderOptions currentOptions;
+    private int           currentPage;
+    
+    // Bumped by every submit(), so prefetches for old text are dropped.
+    private volatile int generation;
+    
+    private volatile long lastRenderMillis;
+    
+    // Size of the preview pane, for drafts.
+    private int draftWidth;
+    private int draftHeight;
+    
+    /**
+     * @param foreground   true while the results are on screen, to give the 
+     *                     jobs priority over other tabs.
+     * @param onOverBudget told why, when the RenderSupervisor cut a render 
+     *                     off. The last preview stays up.
+     */
+    RenderPipeline(Metrics metrics, BooleanSupplier foreground, Consumer<Preview> onRendered, Consumer<String> onOverBudget) {
+        this.metrics      = metrics;
+        this.workers      = Workers.executor(Workers.Lane.RENDER,   foreground);
+        this.prefetchers  = Workers.executor(Workers.Lane.PREFETCH, foreground);
+        this.onRendered   = onRendered;
+        this.onOverBudget = onOverBudget;
+    }
+    
+    /**
+     * @return how long PlantUML took for the most recent render.
+     */
+    long getLastRenderMillis() {
+        return lastRenderMillis;
+    }
+    
+    /**
+     * @return true if source is already rendered, or being rendered, with 
+     *         the current options and page.
+     */
+    boolean isCurrent(String source) {
+        return source.equals(currentSource) && options.equals(currentOptions) && page == currentPage;
+    }
+    
+    RenderOptions getOptions() {
+        return options;
+    }
+    
+    /**
+     * Sets the output format of the following renders, RenderOptions.PNG for
+     * an Image or RenderOptions.SVG for SVG text.
+     */
+    void setOptions(RenderOptions options) {
+        this.options = options;
+    }
+    
+    int getPage() {
+        return page;
+    }
+    
+    /**
+     * Sets the page shown by the following renders. Past the last page, the
+     * last page is shown.
+     */
+    void setPage(int page) {
+        this.page = page;
+    }
+    
+    /**
+     * Sets the size drafts are scaled down to, usually that of the preview.
+     */
+    void setDraftSize(int width, int height) {
+        this.draftWidth  = width;
+        this.draftHeight = height;
+    }
+    
+    /**
+     * Sets where relative !includes are found, usually the folder of the 
+     * document. Null means the current directory.
+     */
+    void setFolder(File folder) {
+        this.folder = folder;
+    }
+    
+    Task<Preview> submit(String source) {
+        return submit(source, 0);
+    }
+    
+    /**
+     * @param settleMillis time to wait before starting PlantUML, during which
+     *                     the job is cheap to cancel.
+     */
+    Task<Preview> submit(String source, long settleMillis) {
+        cancel();
+        
+        final RenderOptions options = this.options;
+        final int page = this.page;
+        final File folder = this.folder;
+        final int generation = ++this.generation;
+        
+        // Drafts only pay off for slow renders, and vectors scale anyway.
+        final RenderOptions draftOptions = 
+            !options.isSvg() && draftWidth > 0 && draftHeight > 0 && lastRenderMillis >= Common.getDraftAfterMs()
+                ? options.fitInto(draftWidth, draftHeight)
+                : null;
+        
+        Task<Preview> task = new Task<Preview>() {
+            @Override
+            protected Preview call() throws Exception {
+                if (settleMillis > 0) {
+                    // Interrupted if a newer edit cancels this job.
+                    Thread.sleep(settleMillis);
+                }
+                
+                List<DiagramPages.Page> pages = DiagramPages.split(source, folder);
+                int shown = Math.min(page, pages.size() - 1);
+                
+                DiagramPages.Page shownPage = pages.get(shown);
+                
+                Set<Path> includes = new HashSet<>();
+                for (DiagramPages.Page p : pages) {
+                    includes.addAll(p.includes);
+                }
+                
+                Future<?> draft = draftOptions != null && !cache.contains(shownPage.key(options))
+                    ? startDraft(this, shownPage, draftOptions, new Preview(null, shown, pages.size(), includes, null))
+                    : null;
+                
+                RenderCache.Entry entry;
+                try {
+                    entry = render(shownPage, options, this::isCancelled);
+                } finally {
+                    // Too late to be of use now.
+                    if (draft != null) {
+                        draft.cancel(true);
+                    }
+                }
+                
+                if (entry == null) {
+                    return null;
+                }
+                
+                // Most likely to be looked at next.
+                prefetch(pages, shown + 1, options, generation);
+                prefetch(pages, shown - 1, options, generation);
+                
+                return new Preview(entry, shown, pages.size(), includes, shownPage.key(options));
+            }
+        };
+        
+        task.setOnSucceeded(e -> {
+            // A newer job may have been submitted after this one finished.
+            if (task == current) {
+                current = null;
+                onRendered.accept(task.getValue());
+            }
+        });
+        
+        task.setOnCancelled(e -> {
+            // Cancelled from outside, e.g. by the live preview stream.
+            if (task == current) {
+                current = null;
+                currentSource = null;
+            }
+        });
+        
+        task.setOnFailed(e -> {
+            boolean wasCurrent = task == current;
+            
+            // So the same source can be submitted again.
+            if (wasCurrent) {
+                current = null;
+                currentSource = null;
+            }
+            
+            // Already logged by the RenderSupervisor.
+            if (task.getException() instanceof RenderSupervisor.OverBudgetException) {
+                if (wasCurrent) {
+                    onOverBudget.accept(task.getException().getMessage());
+                }
+                return;
+            }
+            
+            Logger.getLogger(RenderPipeline.class.getName()).log(Level.SEVERE, null, task.getException());
+        });
+        
+        current = task;
+        currentSource = source;
+        currentOptions = options;
+        currentPage = page;
+        workers.execute(task);
+        
+        return task;
+    }
+    
+    /**
+     * Renders a draft of the page, and shows it unless the full render, or a
+     * newer job, gets there first. Drafts aren't cached, nor counted in the
+     * Metrics.
+     * 
+     * Drafts run in a lane of their own, next to the full render however few
+     * Workers there are. A draft cancelled in a RenderWorker has the worker 
+     * killed; in this JVM, PlantUML can't be stopped, but only one draft runs
+     * at a time and nothing after PlantUML is done for a cancelled one.
+     * 
+     * @param where the page is in the document, without an entry yet.
+     */
+    private Future<?> startDraft(Task<Preview> job, DiagramPages.Page page, RenderOptions options, Preview where) {
+        FutureTask<Void> draft = new FutureTask<>(() -> {
+            Thread self = Thread.currentThread();
+            
+            Renderer.Result result = RenderWorkers.isEnabled()
+                ? RenderWorkers.render(page.source, page.folder, page.options(options), self::isInterrupted)
+                : null;
+            
+            // Not through the RenderSupervisor, whose threads may all be
+            // busy with full renders.
+            if (result == null) {
+                result = Renderer.render(page.source, page.folder, page.options(options));
+            }
+            
+            if (self.isInterrupted()) {
+                return null;
+            }
+            
+            Image image = new Image(result.toInputStream());
+            
+            if (!image.isError() && !self.isInterrupted()) {
+                Preview preview = new Preview(
+                    new RenderCache.Entry(result.toByteArray(), image), where.page, where.pageCount, where.includes, null);
+                
+                Platform.runLater(() -> {
+                    if (job == current) {
+                        onRendered.accept(preview);
+                    }
+                });
+            }
+            return null;
+        });
+        
+        drafts.execute(draft);
+        return draft;
+    }
+    
+    private void prefetch(List<DiagramPages.Page> pages, int index, RenderOptions options, int generation) {
+        if (index < 0 || index >= pages.size()) {
+            return;
+        }
+        
+        DiagramPages.Page page = pages.get(index);
+        
+        prefetchers.execute(() -> {
+            try {
+                // Only fills the caches, unless the text changed meanwhile.
+                render(page, options, () -> generation != this.generation);
+            } catch (Exception ex) {
+                Logger.getLogger(RenderPipeline.class.getName()).log(Level.WARNING, null, ex);
+            }
+        });
+    }
+    
+    /**
+     * Looks the page up in the caches, or renders and caches it.
+     * 
+     * @return null if cancelled was true before the decode.
+     */
+    private RenderCache.Entry render(DiagramPages.Page page, RenderOptions options, BooleanSupplier cancelled) throws Exception {
+        String key = page.key(options);
+        options = page.options(options);
+        
+        RenderCache.Entry cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        
+        if (cancelled.getAsBoolean()) {
+            return null;
+        }
+        
+        byte[] stored = diskCache.get(key);
+        if (stored != null) {
+            RenderCache.Entry entry = options.isSvg()
+                ? new RenderCache.Entry(new String(stored, StandardCharsets.UTF_8))
+                : new RenderCache.Entry(stored, decode(new ByteArrayInputStream(stored)));
+            
+            if (!entry.isError() && (entry.svg == null || isComplete(entry.svg))) {
+                cache.put(key, entry);
+                return entry;
+            }
+            
+            // Truncated or corrupt, render it again below.
+            diskCache.remove(key);
+        }
+        
+        Renderer.Result result = RenderSupervisor.render(page.source, page.folder, options, 
+            metrics.getName() + " page " + (page.index + 1));
+        lastRenderMillis = Metrics.ms(result.elapsedNanos);
+        
+        metrics.record(Metrics.Stage.PARSE,  result.parseNanos);
+        metrics.record(Metrics.Stage.RENDER, result.renderNanos);
+        
+        Logger.getLogger(RenderPipeline.class.getName()).log(Level.FINE, 
+            "{0}: {1}, {2}ms", new Object[] { metrics.getName(), result.description, lastRenderMillis });
+        
+        // Superseded while PlantUML was busy, skip the decode.
+        if (cancelled.getAsBoolean()) {
+            return null;
+        }
+        
+        RenderCache.Entry entry;
+        
+        if (options.isSvg()) {
+            // Straight from PlantUML's buffer to the text the WebView 
+            // takes, no encoding or decoding of pixels.
+            entry = new RenderCache.Entry(result.toText());
+        }
+        else {
+            Image image = decode(result.toInputStream());
+            entry = new RenderCache.Entry(result.toByteArray(), image);
+        }
+        
+        // Don't cache broken output, so it's retried next time.
+        if (!entry.isError()) {
+            cache.put(key, entry);
+            
+            // The fsync stays out of the way of the preview.
+            byte[] bytes = entry.data != null ? entry.data : result.toByteArray();
+            diskWriter.execute(() -> diskCache.put(key, bytes));
+        }
+        
+        // Also on the Metrics MBean.
+        Logger.getLogger(RenderPipeline.class.getName()).fine(cache::toString);
+        
+        return entry;
+    }
+    
+    /**
+     * @return false for SVG text which was cut off, which nothing else would
+     *         notice, unlike a cut off PNG.
+     */
+    private static boolean isComplete(String svg) {
+        return svg.trim().endsWith("</svg>");
+    }
+    
+    private Image decode(InputStream data) {
+        long startTime = System.nanoTime();
+        Image image = new Image(data);
+        metrics.record(Metrics.Stage.DECODE, System.nanoTime() - startTime);
+        
+        return image;
+    }
+    
+    /**
+     * Decodes a bitmap again whose Image was released to save memory.
+     * 
+     * @return the image of data, from the RenderCache if it's there again,
+     *         otherwise decoded.
+     */
+    CompletableFuture<Image> restoreAsync(String key, byte[] data) {
+        RenderCache.Entry cached = key != null ? cache.get(key) : null;
+        
+        if (cached != null && cached.image != null) {
+            return CompletableFuture.completedFuture(cached.image);
+        }
+        
+        return CompletableFuture.supplyAsync(() -> decode(new ByteArrayInputStream(data)), workers);
+    }
+    
+    /**
+     * Drops the entry of data from the RenderCache, so a hidden tab which 
+     * let go of its image really frees it. The DiskRenderCache still has the
+     * bytes.
+     */
+    void evict(String key, byte[] data) {
+        if (key != null) {
+            cache.remove(key, data);
+        }
+    }
+    
+    void cancel() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+            currentSource = null;
+        }
+    }
+    
+    static String cacheStatistics() {
+        return cache + "; " + diskCache;
+    }
+}
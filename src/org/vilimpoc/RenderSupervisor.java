@@ -0,0 +1,212 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds how long a render may take.
+ * 
+ * Renders over Common.getRenderBudgetMs() are cut off with an 
+ * OverBudgetException, and renders over Common.getSlowRenderMs() are logged,
+ * to find the diagrams that need splitting. 
+ * 
+ * In RenderWorkers, an overrunning worker is killed. In this JVM, PlantUML 
+ * runs on a thread of its own, which is interrupted and abandoned, so the 
+ * caller is free again; but PlantUML rarely checks for interrupts, so it
+ * usually runs on until it's done. The same goes for renders whose caller 
+ * was cancelled, e.g. by a newer edit. There are never more render threads 
+ * than Workers has, so while those runaways are still busy, further renders
+ * queue behind them rather than piling up more threads. The budget of a 
+ * render starts when it gets a thread, not while it's queued.
+ */
+class RenderSupervisor {
+    
+    /**
+     * A render cut off for running over its budget.
+     */
+    static class OverBudgetException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        OverBudgetException(String message) {
+            super(message);
+        }
+    }
+    
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+    
+    // States of a render in this JVM.
+    private static final int QUEUED    = 0;
+    private static final int RUNNING   = 1;
+    private static final int FINISHED  = 2;
+    private static final int ABANDONED = 3;
+    
+    // Overrun or cancelled renders in this JVM which haven't finished yet.
+    private static final AtomicInteger runaways = new AtomicInteger();
+    
+    private static final AtomicInteger runnerId = new AtomicInteger();
+    
+    // As many as Workers runs renders at once.
+    private static final ThreadPoolExecutor runners = new ThreadPoolExecutor(
+        Workers.getWorkerCount(), Workers.getWorkerCount(), IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        r -> {
+            Thread t = new Thread(r, "FabrikUml-render-" + runnerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    
+    static {
+        runners.allowCoreThreadTimeOut(true);
+    }
+    
+    private RenderSupervisor() {
+    }
+    
+    /**
+     * Like Renderer.render(), but within the budget, and in RenderWorkers if
+     * they're running and one is free.
+     * 
+     * @param label names the diagram in the log.
+     */
+    static Renderer.Result render(String source, File folder, RenderOptions options, String label) throws IOException {
+        long startTime = System.nanoTime();
+        
+        try {
+            Renderer.Result result = RenderWorkers.isEnabled()
+                ? RenderWorkers.render(source, folder, options)
+                : null;
+            
+            // No worker free in time, or none running.
+            if (result == null) {
+                result = renderWithin(source, folder, options, Common.getRenderBudgetMs());
+            }
+            
+            long elapsedMs = Metrics.ms(System.nanoTime() - startTime);
+            
+            if (elapsedMs > Common.getSlowRenderMs()) {
+                Logger.getLogger(RenderSupervisor.class.getName()).log(Level.WARNING, 
+                    "Slow render, {0}ms: {1}", new Object[] { elapsedMs, describe(source, label) });
+            }
+            
+            return result;
+        } catch (OverBudgetException ex) {
+            Logger.getLogger(RenderSupervisor.class.getName()).log(Level.WARNING, 
+                "{0}: {1}", new Object[] { ex.getMessage(), describe(source, label) });
+            throw ex;
+        }
+    }
+    
+    private static Renderer.Result renderWithin(String source, File folder, RenderOptions options, long budgetMs) throws IOException {
+        AtomicInteger  state   = new AtomicInteger(QUEUED);
+        CountDownLatch started = new CountDownLatch(1);
+        
+        if (runaways.get() > 0) {
+            Logger.getLogger(RenderSupervisor.class.getName()).log(Level.FINE, 
+                "Render queued behind {0} abandoned renders.", runaways.get());
+        }
+        
+        Future<Renderer.Result> future = runners.submit(() -> {
+            // Given up on before it got a thread.
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return null;
+            }
+            
+            started.countDown();
+            
+            try {
+                return Renderer.render(source, folder, options);
+            } finally {
+                if (!state.compareAndSet(RUNNING, FINISHED)) {
+                    runaways.decrementAndGet();
+                }
+            }
+        });
+        
+        try {
+            started.await();
+            return future.get(budgetMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            abandon(future, state);
+            throw new OverBudgetException("Render took over " + budgetMs + "ms");
+        } catch (InterruptedException ex) {
+            // A newer job replaced this one.
+            abandon(future, state);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+    
+    /**
+     * Interrupts the render, and counts it as a runaway until it's done, if
+     * it had started already.
+     */
+    private static void abandon(Future<Renderer.Result> future, AtomicInteger state) {
+        // Counted first, so the render can't uncount itself before.
+        runaways.incrementAndGet();
+        
+        if (!state.compareAndSet(RUNNING, ABANDONED)) {
+            runaways.decrementAndGet();
+            
+            // Still queued: it won't run at all. Finished: nothing to stop.
+            state.compareAndSet(QUEUED, ABANDONED);
+        }
+        
+        future.cancel(true);
+    }
+    
+    private static String describe(String source, String label) {
+        int lines = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        
+        return label + ", " + lines + " lines, " + source.length() + " chars";
+    }
+}
@@ -0,0 +1,477 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sourceforge.plantuml.FileFormat;
+
+/**
+ * Renders in separate JVMs, so PlantUML can't take the editor down with it.
+ * 
+ * With RENDER_WORKERS above 0, start() launches that many JVMs running main()
+ * below, from the same class path and JVM options, each with a heap of
+ * RENDER_WORKER_HEAP_MB, and render() hands jobs to whichever is idle. A job which runs longer than
+ * Common.getRenderBudgetMs() has its worker killed and replaced; so does a 
+ * worker which crashes or runs out of memory. The editor only ever holds the
+ * encoded image, however large the diagram.
+ * 
+ * Jobs and results go over the worker's stdin and stdout. Everything the 
+ * worker prints goes to its stderr, which is the editor's. A new worker first
+ * renders PlantUmlSyntax.SAMPLE_CODE and then sends READY, so jobs only go to
+ * warm workers and the timeout doesn't have to cover JVM startup. If none 
+ * becomes idle within WORKER_WAIT_MS, e.g. while they're all busy or still
+ * starting, render() returns null and the caller renders in its own JVM. 
+ * Workers which fail to start are retried, up to MAX_START_FAILURES in a row;
+ * after that the pool stays empty and render() returns null right away.
+ * 
+ * Request:  folder (UTF, "" for none), format (UTF), page (int), 
+ *           Java layout (boolean), max width and height (int, int),
+ *           source length (int), source (UTF-8 bytes).
+ * Response: OK (byte), parse nanos (long), render nanos (long), 
+ *           description (UTF), image length (int), image (bytes);
+ *           or FAILED (byte), message (UTF); or BROKEN (byte), message
+ *           (UTF), after which the worker exits.
+ */
+class RenderWorkers {
+    
+    private static final byte OK     = 0;
+    private static final byte FAILED = 1;
+    private static final byte READY  = 2;
+    
+    // Failed with an Error, e.g. out of memory: the worker is going away.
+    private static final byte BROKEN = 3;
+    
+    // How long a render waits for an idle worker before running here.
+    private static final long WORKER_WAIT_MS = 2000;
+    
+    // How often cancellable renders check whether they still should run.
+    private static final long CANCEL_POLL_MS = 50;
+    
+    // Consecutive start-up failures after which no more workers are started.
+    private static final int MAX_START_FAILURES = 3;
+    
+    // JVM options of the editor not passed on to workers: agents and 
+    // debuggers would clash over their ports, and workers have their own heap.
+    private static final String[] NOT_INHERITED = {
+        "-agentlib", "-agentpath", "-javaagent", "-Xdebug", "-Xrunjdwp", 
+        "-Dcom.sun.management.jmxremote", "-Xmx"
+    };
+    
+    private static class Worker {
+        final Process          process;
+        final DataOutputStream requests;
+        final DataInputStream  responses;
+        
+        Worker(Process process) {
+            this.process   = process;
+            this.requests  = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+    }
+    
+    private static RenderWorkers pool;
+    
+    private final int  heapMb;
+    private final long timeoutMs;
+    
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    
+    // Idle or busy, to kill them all on exit.
+    private final Set<Process> processes = Collections.synchronizedSet(new HashSet<>());
+    
+    // Started or starting, so renders don't wait when there are none.
+    private final AtomicInteger live = new AtomicInteger();
+    
+    private final AtomicInteger startFailures = new AtomicInteger();
+    private final AtomicBoolean gaveUp        = new AtomicBoolean();
+    
+    // Kills overrunning workers.
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FabrikUml-render-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    // Starts workers and waits for them to warm up.
+    private final ExecutorService starter = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "FabrikUml-render-starter");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    private RenderWorkers(int count, int heapMb, long timeoutMs) {
+        this.heapMb    = heapMb;
+        this.timeoutMs = timeoutMs;
+        
+        for (int i = 0; i < count; i++) {
+            live.incrementAndGet();
+            starter.execute(this::replace);
+        }
+    }
+    
+    /**
+     * Launches the workers, if RENDER_WORKERS asks for any. They warm up 
+     * while the UI comes up.
+     */
+    static synchronized void start() {
+        int count = Common.getRenderWorkers();
+        
+        if (pool == null && count > 0) {
+            pool = new RenderWorkers(count, Common.getRenderWorkerHeapMb(), Common.getRenderBudgetMs());
+        }
+    }
+    
+    static synchronized boolean isEnabled() {
+        return pool != null;
+    }
+    
+    static synchronized void shutdown() {
+        if (pool != null) {
+            pool.watchdog.shutdownNow();
+            pool.starter.shutdownNow();
+            
+            synchronized (pool.processes) {
+                for (Process process : pool.processes) {
+                    process.destroyForcibly();
+                }
+            }
+            
+            pool = null;
+        }
+    }
+    
+    /**
+     * Like Renderer.render(), but in a worker.
+     * 
+     * @return null if the workers aren't running or failed to start, or none
+     *         became idle within WORKER_WAIT_MS.
+     * 
+     * @throws IOException if the worker failed, crashed or timed out.
+     */
+    static Renderer.Result render(String source, File folder, RenderOptions options) throws IOException {
+        return render(source, folder, options, null);
+    }
+    
+    /**
+     * Like render(), but the worker is killed and replaced as soon as 
+     * cancelled says so, since PlantUML can't be stopped any other way.
+     * 
+     * @param cancelled polled every CANCEL_POLL_MS, or null.
+     * 
+     * @throws InterruptedIOException if cancelled.
+     */
+    static Renderer.Result render(String source, File folder, RenderOptions options, BooleanSupplier cancelled) throws IOException {
+        RenderWorkers workers;
+        
+        synchronized (RenderWorkers.class) {
+            workers = pool;
+        }
+        
+        return workers != null ? workers.renderIn(source, folder, options, cancelled) : null;
+    }
+    
+    private Renderer.Result renderIn(String source, File folder, RenderOptions options, BooleanSupplier cancelled) throws IOException {
+        Worker worker;
+        
+        if (live.get() == 0) {
+            return null;
+        }
+        
+        try {
+            // Waits a little for a busy or starting one, rather than piling
+            // up more processes.
+            worker = idle.poll(WORKER_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        
+        if (worker == null) {
+            Logger.getLogger(RenderWorkers.class.getName()).log(Level.FINE, 
+                "No render worker idle within {0}ms, rendering in process.", WORKER_WAIT_MS);
+            return null;
+        }
+        
+        AtomicBoolean timedOut = new AtomicBoolean();
+        AtomicBoolean stopped  = new AtomicBoolean();
+        boolean       reusable = false;
+        
+        ScheduledFuture<?> kill = watchdog.schedule(() -> {
+            timedOut.set(true);
+            worker.process.destroyForcibly();
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        
+        ScheduledFuture<?> stop = cancelled == null ? null : watchdog.scheduleWithFixedDelay(() -> {
+            if (cancelled.getAsBoolean() && stopped.compareAndSet(false, true)) {
+                worker.process.destroyForcibly();
+            }
+        }, CANCEL_POLL_MS, CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+        
+        try {
+            byte[] text = source.getBytes(StandardCharsets.UTF_8);
+            
+            worker.requests.writeUTF(folder != null ? folder.getAbsolutePath() : "");
+            worker.requests.writeUTF(options.format.name());
+            worker.requests.writeInt(options.page);
+            worker.requests.writeBoolean(options.javaLayout);
+            worker.requests.writeInt(options.maxWidth);
+            worker.requests.writeInt(options.maxHeight);
+            worker.requests.writeInt(text.length);
+            worker.requests.write(text);
+            worker.requests.flush();
+            
+            byte status = worker.responses.readByte();
+            
+            if (status != OK) {
+                String message = worker.responses.readUTF();
+                
+                // A BROKEN worker exits, a FAILED one takes the next job.
+                reusable = status == FAILED;
+                throw new IOException("Render worker failed: " + message);
+            }
+            
+            long   parseNanos  = worker.responses.readLong();
+            long   renderNanos = worker.responses.readLong();
+            String description = worker.responses.readUTF();
+            byte[] image       = new byte[worker.responses.readInt()];
+            worker.responses.readFully(image);
+            
+            reusable = true;
+            
+            return new Renderer.Result(image, image.length, description, parseNanos, renderNanos);
+        } catch (IOException ex) {
+            if (timedOut.get()) {
+                throw new RenderSupervisor.OverBudgetException("Render took over " + timeoutMs + "ms, its worker was restarted");
+            }
+            if (stopped.get()) {
+                throw new InterruptedIOException("Render cancelled, its worker was restarted");
+            }
+            throw ex;
+        } finally {
+            kill.cancel(false);
+            
+            if (stop != null) {
+                stop.cancel(false);
+            }
+            
+            if (reusable && !timedOut.get() && !stopped.get()) {
+                idle.add(worker);
+            }
+            else {
+                retire(worker);
+            }
+        }
+    }
+    
+    private void retire(Worker worker) {
+        worker.process.destroyForcibly();
+        processes.remove(worker.process);
+        
+        if (!starter.isShutdown() && !gaveUp.get()) {
+            starter.execute(this::replace);
+        }
+        else {
+            live.decrementAndGet();
+        }
+    }
+    
+    private void replace() {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(inheritedOptions());
+        command.add("-Xmx" + heapMb + "m");
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        // Not FabrikUml, which would start JavaFX.
+        command.add(RenderWorkers.class.getName());
+        
+        Process process = null;
+        
+        try {
+            process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            
+            processes.add(process);
+            
+            Worker worker = new Worker(process);
+            
+            if (worker.responses.readByte() == READY) {
+                startFailures.set(0);
+                idle.add(worker);
+                return;
+            }
+            
+            throw new IOException("Render worker did not start.");
+        } catch (IOException ex) {
+            Logger.getLogger(RenderWorkers.class.getName()).log(Level.FINE, "Could not start a render worker.", ex);
+        }
+        
+        if (process != null) {
+            process.destroyForcibly();
+            processes.remove(process);
+        }
+        
+        if (startFailures.incrementAndGet() < MAX_START_FAILURES && !starter.isShutdown()) {
+            starter.execute(this::replace);
+            return;
+        }
+        
+        live.decrementAndGet();
+        
+        if (gaveUp.compareAndSet(false, true)) {
+            Logger.getLogger(RenderWorkers.class.getName()).log(Level.WARNING, 
+                "Render workers failed to start {0} times in a row, rendering in process from now on.", MAX_START_FAILURES);
+        }
+    }
+    
+    /**
+     * @return the options this JVM was started with, e.g. --add-exports, 
+     *         except NOT_INHERITED.
+     */
+    private static List<String> inheritedOptions() {
+        List<String> options = new ArrayList<>();
+        
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (isInherited(option)) {
+                options.add(option);
+            }
+        }
+        
+        return options;
+    }
+    
+    private static boolean isInherited(String option) {
+        for (String prefix : NOT_INHERITED) {
+            if (option.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * The worker side.
+     */
+    public static void main(String[] args) {
+        System.exit(serve());
+    }
+    
+    /**
+     * Renders requests from stdin until it's closed.
+     * 
+     * @return the exit code.
+     */
+    private static int serve() {
+        // Only responses may go to stdout.
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        DataInputStream  requests  = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        System.setOut(System.err);
+        
+        try {
+            // Loads and compiles most of PlantUML before the first real job.
+            try {
+                Renderer.render(PlantUmlSyntax.SAMPLE_CODE);
+            } catch (Exception ex) {
+                Logger.getLogger(RenderWorkers.class.getName()).log(Level.WARNING, null, ex);
+            }
+            
+            responses.writeByte(READY);
+            responses.flush();
+            
+            while (true) {
+                String  folder     = requests.readUTF();
+                String  format     = requests.readUTF();
+                int     page       = requests.readInt();
+                boolean javaLayout = requests.readBoolean();
+                int     maxWidth   = requests.readInt();
+                int     maxHeight  = requests.readInt();
+                byte[]  text       = new byte[requests.readInt()];
+                requests.readFully(text);
+                
+                Renderer.Result result;
+                
+                try {
+                    result = Renderer.render(
+                        new String(text, StandardCharsets.UTF_8), 
+                        folder.isEmpty() ? null : new File(folder), 
+                        new RenderOptions(FileFormat.valueOf(format), page, javaLayout, maxWidth, maxHeight));
+                } catch (Exception ex) {
+                    responses.writeByte(FAILED);
+                    responses.writeUTF(String.valueOf(ex));
+                    responses.flush();
+                    continue;
+                } catch (Error ex) {
+                    // Out of memory, or worse: start over in a fresh worker.
+                    responses.writeByte(BROKEN);
+                    responses.writeUTF(String.valueOf(ex));
+                    responses.flush();
+                    return 3;
+                }
+                
+                responses.writeByte(OK);
+                responses.writeLong(result.parseNanos);
+                responses.writeLong(result.renderNanos);
+                responses.writeUTF(result.description != null ? result.description : "");
+                responses.writeInt(result.length);
+                result.writeTo(responses);
+                responses.flush();
+            }
+        } catch (EOFException ex) {
+            // The editor closed stdin, or exited.
+            return 0;
+        } catch (IOException ex) {
+            Logger.getLogger(RenderWorkers.class.getName()).log(Level.SEVERE, null, ex);
+            return 1;
+        }
+    }
+}
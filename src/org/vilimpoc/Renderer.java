@@ -0,0 +1,177 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import net.sourceforge.plantuml.SourceStringReader;
+
+/**
+ * Turns PlantUML source into encoded image bytes.
+ * 
+ * Deliberately free of any JavaFX types, so it can be called from any thread.
+ */
+class Renderer {
+
+    /**
+     * A ByteArrayOutputStream which lets go of its buffer without copying it.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+        
+        byte[] array() {
+            return buf;
+        }
+    }
+    
+    /**
+     * The encoded image, still in the buffer PlantUML wrote it to. Read it 
+     * through toInputStream() or toText() to avoid copying it.
+     */
+    static class Result {
+        private final byte[] buffer;
+        
+        final int    length;
+        final String description;
+        final long   parseNanos;
+        final long   renderNanos;
+        final long   elapsedNanos;
+
+        Result(byte[] buffer, int length, String description, long parseNanos, long renderNanos) {
+            this.buffer       = buffer;
+            this.length       = length;
+            this.description  = description;
+            this.parseNanos   = parseNanos;
+            this.renderNanos  = renderNanos;
+            this.elapsedNanos = parseNanos + renderNanos;
+        }
+        
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buffer, 0, length);
+        }
+        
+        /**
+         * @return the output of a text format like SVG.
+         */
+        String toText() {
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * @return a trimmed copy, for keeping around.
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+        
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, length);
+        }
+    }
+    
+    private Renderer() {
+    }
+    
+    static Result render(String source) throws IOException {
+        return render(source, RenderOptions.PNG);
+    }
+    
+    static Result render(String source, RenderOptions options) throws IOException {
+        return render(source, null, options);
+    }
+    
+    /**
+     * @param folder where relative !include paths are resolved, or null for 
+     *               the current directory.
+     */
+    static Result render(String source, File folder, RenderOptions options) throws IOException {
+        // Time the image generation.
+        long startTime = System.nanoTime();
+
+        source = options.apply(source);
+        
+        SourceStringReader reader = folder != null ? new SourceStringReader(source, folder) : new SourceStringReader(source);
+        
+        // Parse up front to time it separately. The diagram is kept for
+        // generateImage() below.
+        if (!reader.getBlocks().isEmpty()) {
+            reader.getBlocks().get(0).getDiagram();
+        }
+        
+        long parsedTime = System.nanoTime();
+
+        // Write the requested page to "image"
+        Buffer image = new Buffer(1000000);
+        String desc = reader.generateImage(image, options.page, options.toFileFormatOption());
+        
+        long renderedTime = System.nanoTime();
+        
+        return new Result(image.array(), image.size(), desc, parsedTime - startTime, renderedTime - parsedTime);
+    }
+    
+    /**
+     * @return a content hash which identifies the output of render(), for 
+     *         use as a cache key.
+     */
+    static String key(String source, RenderOptions options) {
+        return key(source, "", options);
+    }
+    
+    /**
+     * @param dependencies describes anything outside of source which changes
+     *                     the output, like the files it includes.
+     */
+    static String key(String source, String dependencies, RenderOptions options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(options.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            
+            if (!dependencies.isEmpty()) {
+                digest.update(dependencies.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            
+            byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+            
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the settings file in the background.
+ * 
+ * save() only hands over a snapshot and returns. The first save of a burst 
+ * schedules a write COALESCE_MS later; any saves until then just replace the
+ * snapshot, so opening 50 files writes the file once, not 50 times. The file
+ * is written to a temporary name and then moved into place, so a crash 
+ * leaves either the old or the new settings, never half of them.
+ */
+class SessionStore {
+    
+    private static final long COALESCE_MS = 250;
+    
+    private final Path file;
+    
+    private final String comment;
+    
+    // The latest snapshot not written yet.
+    private final AtomicReference<Properties> pending = new AtomicReference<>();
+    
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FabrikUml-session");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    SessionStore(Path file, String comment) {
+        this.file    = file;
+        this.comment = comment;
+    }
+    
+    /**
+     * @param snapshot not modified afterwards.
+     */
+    void save(Properties snapshot) {
+        if (pending.getAndSet(snapshot) == null) {
+            writer.schedule(this::write, COALESCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Writes any pending snapshot now, and waits for it.
+     */
+    void flush() {
+        try {
+            writer.submit(this::write).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(SessionStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    private void write() {
+        Properties snapshot = pending.getAndSet(null);
+        
+        // Already written by flush().
+        if (snapshot == null) {
+            return;
+        }
+        
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        
+        try {
+            Files.createDirectories(file.getParent());
+            
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                snapshot.store(out, comment);
+            }
+            
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SessionStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -21,47 +21,44 @@
 */
 package org.vilimpoc;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Optional;
 import java.util.ResourceBundle;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
 import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.scene.control.Label;
+import javafx.scene.control.Pagination;
 import javafx.scene.control.Tab;
+import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
+import javafx.scene.web.WebView;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
-import net.sourceforge.plantuml.SourceStringReader;
 import org.fxmisc.richtext.CodeArea;
 import org.fxmisc.richtext.LineNumberFactory;
-import org.fxmisc.richtext.model.StyleSpans;
-import org.fxmisc.richtext.model.StyleSpansBuilder;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.reactfx.EventStream;
 
 public class TabController implements Initializable {
 
@@ -79,112 +76,179 @@ public class TabController implements Initializable {
     
     @FXML
     private ImageView preview;
+    
+    // Shown over the preview while it's older than the text.
+    @FXML
+    private Label     staleLabel;
+    
+    // Only shown for documents with several pages.
+    @FXML
+    private Pagination pageStrip;
+    
+    // Set while showPreview() updates pageStrip, so that doesn't count as 
+    // the user flipping pages.
+    private boolean updatingPageStrip;
+    
+    // What the backing file held when it was last loaded or saved, to tell 
+    // our own saves and unsaved edits apart from changes by other programs.
+    private String diskText = "";
+    
+    // Handed to the saver but not confirmed written yet, or null.
+    private String savingText;
+    
+    private final Consumer<Set<Path>> onBackingFileChanged = files -> reloadBackingFile();
+    
+    // Files of Common.getLargeFileBytes() or more aren't highlighted, and only
+    // rendered on Ctrl-R.
+    private boolean largeFile;
+
+    // The encoded bitmap shown and its RenderCache key, kept when 
+    // PreviewImages releases the decoded image, to get it back when the tab
+    // is shown.
+    private byte[]    shownData;
+    private String    shownKey;
+    
+    // Created on first use, WebViews are expensive.
+    private WebView   vectorPreview;
 
     private final KeyCombination refresh = new KeyCodeCombination(KeyCode.R, KeyCombination.CONTROL_DOWN);
+    private final KeyCombination vector  = new KeyCodeCombination(KeyCode.P, KeyCombination.CONTROL_DOWN);
+    private final KeyCombination layout  = new KeyCodeCombination(KeyCode.J, KeyCombination.CONTROL_DOWN);
+    
+    // Makes the SVG fill the pane, so the WebView rescales it on resize
+    // without another render. PlantUML sets a fixed size and stretching.
+    private static final String SVG_PAGE_START = 
+        "<html><head><style>" +
+        "html, body { margin: 0; width: 100%; height: 100%; overflow: hidden; } " +
+        "svg { width: 100% !important; height: 100% !important; }" +
+        "</style></head><body>";
+    private static final String SVG_PAGE_END = "</body></html>";
+    
+    private static final String SVG_STRETCH = "preserveAspectRatio=\"none\"";
+    private static final String SVG_FIT     = "preserveAspectRatio=\"xMidYMid meet\"";
+    
+    // Live preview waits at least this long after the last keystroke, and up
+    // to LIVE_PREVIEW_QUIET_MAX_MS for diagrams that are slow to render.
+    private static final long LIVE_PREVIEW_QUIET_MIN_MS = 500;
+    private static final long LIVE_PREVIEW_QUIET_MAX_MS = 3000;
+    
+    // Incremental highlighting is cheap, so it can keep up with typing.
+    private static final long HIGHLIGHT_QUIET_MS = 100;
+    
+    // Untitled documents are written out once typing pauses this long.
+    private static final long AUTOSAVE_QUIET_MS = 1000;
+    
+    private final AutoSaver saver = new AutoSaver(this::pushUnsaved, this::saved, this::saveFailed);
     
     private TabModel model;
     
-    private ExecutorService executor;
+    private RenderPipeline renderer;
     
-    private static List<ExecutorService> executors = new LinkedList<>();
+    private IncrementalHighlighter highlighter;
     
-    protected static void shutdownAll() {
-        for (ExecutorService e : executors) {
-            System.out.println("Shutting down ExecutorService: " + e);
-            if (!e.isShutdown()) e.shutdown();
-        }
-    }
+    private final Metrics metrics = new Metrics("");
     
-    private Task<StyleSpans<Collection<String>>> computeHighlightingAsync() {
-        String text = codeArea.getText();
-        Task<StyleSpans<Collection<String>>> task = new Task<StyleSpans<Collection<String>>>() {
-            @Override
-            protected StyleSpans<Collection<String>> call() throws Exception {
-                return computeHighlighting(text);
-            }
-        };
-        executor.execute(task);
-        return task;
+    private Task<RenderPipeline.Preview> renderLiveAsync() {
+        // Don't re-render as often as the diagram takes to render.
+        long quiet = Math.max(LIVE_PREVIEW_QUIET_MIN_MS, renderer.getLastRenderMillis());
+        quiet = Math.min(quiet, LIVE_PREVIEW_QUIET_MAX_MS);
+        
+        // successionEnds() has already waited the minimum.
+        return renderer.submit(codeArea.getText(), quiet - LIVE_PREVIEW_QUIET_MIN_MS);
     }
 
-    private void applyHighlighting(StyleSpans<Collection<String>> highlighting) {
-        codeArea.setStyleSpans(0, highlighting);
-    }
-    
-    // TODO: PATTERN matcher could be returned from PlantUmlSyntax class.
-    
-    private static StyleSpans<Collection<String>> computeHighlighting(String text) {
-        Matcher matcher = PlantUmlSyntax.PATTERN.matcher(text);
-        int lastKwEnd = 0;
-        StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
-        while(matcher.find()) {
-            String styleClass =
-                    matcher.group("AT")         != null ? "at"        :
-                    matcher.group("PREPROC")    != null ? "preproc"   :
-                    matcher.group("TYPE")       != null ? "type"      :
-                    matcher.group("KEYWORD")    != null ? "keyword"   :
-                    
-                    matcher.group("PAREN")      != null ? "paren"     :
-                    matcher.group("BRACE")      != null ? "brace"     :
-                    matcher.group("BRACKET")    != null ? "bracket"   :
-                    matcher.group("SEMICOLON")  != null ? "semicolon" :
-                    matcher.group("STRING")     != null ? "string"    :
-                    matcher.group("COMMENT")    != null ? "comment"   :
-                    null; /* never happens */ assert styleClass != null;
-            spansBuilder.add(Collections.emptyList(), matcher.start() - lastKwEnd);
-            spansBuilder.add(Collections.singleton(styleClass), matcher.end() - matcher.start());
-            lastKwEnd = matcher.end();
-        }
-        spansBuilder.add(Collections.emptyList(), text.length() - lastKwEnd);
-        return spansBuilder.create();
-    }
-    
     /**
      * Initializes the controller class.
      */
     @Override
     public void initialize(URL url, ResourceBundle rb) {
         // Attach the CodeArea.
-        executor = Executors.newSingleThreadExecutor();
-        
-        // Add the Executor to the overall executors list, for 
-        // cleanly shutting down later.
-        executors.add(executor);
-        
         // codeArea = new CodeArea();
         codeArea.setParagraphGraphicFactory(LineNumberFactory.get(codeArea));
-        codeArea.richChanges()
-                .filter(ch -> !ch.getInserted().equals(ch.getRemoved())) // XXX
-                .successionEnds(Duration.ofMillis(500))
-                .supplyTask(this::computeHighlightingAsync)
-                .awaitLatest(codeArea.richChanges())
-                .filterMap(t -> {
-                    if(t.isSuccess()) {
-                        return Optional.of(t.get());
-                    } else {
-                        t.getFailure().printStackTrace();
-                        return Optional.empty();
-                    }
-                })
-                .subscribe(this::applyHighlighting);
+        
+        // Unlike richChanges(), this doesn't fire when highlighting restyles
+        // the text, so only real edits count.
+        EventStream<PlainTextChange> edits = codeArea.plainTextChanges();
+        
+        highlighter = new IncrementalHighlighter(codeArea, Workers.executor(Workers.Lane.HIGHLIGHT, tab::isSelected), metrics);
+        
+        edits
+                .filter(ch -> !largeFile)
+                .subscribe(highlighter::textChanged);
+        edits
+                .successionEnds(Duration.ofMillis(HIGHLIGHT_QUIET_MS))
+                .filter(ch -> !largeFile)
+                .subscribe(ch -> highlighter.highlight());
+        
+        // Untitled documents are kept in the work folder, so they survive a 
+        // crash or restart without the user ever saving them.
+        edits
+                .successionEnds(Duration.ofMillis(AUTOSAVE_QUIET_MS))
+                .filter(ch -> model != null && model.untitled)
+                .subscribe(ch -> autosave());
         
         // codeArea.replaceText(0, 0, PlantUmlSyntax.SAMPLE_CODE);
         
-        // TODO: Rerender after no keystroke has been entered in 500ms.
+        // Rerender after no keystroke has been entered for a while. Any newer
+        // edit cancels the pending render, so stale renders never pile up.
+        edits
+                .successionEnds(Duration.ofMillis(LIVE_PREVIEW_QUIET_MIN_MS))
+                .filter(ch -> Common.isLivePreview() && !largeFile && !renderer.isCurrent(codeArea.getText()))
+                .supplyTask(this::renderLiveAsync)
+                .awaitLatest(edits)
+                .subscribe(t -> {
+                    // The RenderPipeline delivers the preview itself.
+                    if (t.isFailure()) {
+                        t.getFailure().printStackTrace();
+                    }
+                });
         
         codeAreaPane.getStylesheets().add(FabrikUml.class.getResource("PlantUmlSyntax.css").toExternalForm());
 //        
         preview.fitWidthProperty().bind(previewPane.widthProperty());
         preview.fitHeightProperty().bind(previewPane.heightProperty());
         preview.setPreserveRatio(true);
- 
-        generatePng();
+        
+        // The first render happens in setTabModel(), once there is text.
+        renderer = new RenderPipeline(metrics, tab::isSelected, this::showPreview, this::showStale);
+        renderer.setOptions(previewOptions());
+        
+        // Drafts of slow diagrams are drawn just big enough for the preview.
+        InvalidationListener resized = observable -> 
+            renderer.setDraftSize((int) previewPane.getWidth(), (int) previewPane.getHeight());
+        previewPane.widthProperty().addListener(resized);
+        previewPane.heightProperty().addListener(resized);
+        
+        // The pages themselves are drawn in previewPane, this is just the strip.
+        pageStrip.setPageFactory(index -> new Pane());
+        pageStrip.currentPageIndexProperty().addListener((observable, oldIndex, newIndex) -> {
+            if (!updatingPageStrip && newIndex.intValue() != renderer.getPage()) {
+                renderer.setPage(newIndex.intValue());
+                generatePng();
+            }
+        });
+        
+        tab.selectedProperty().addListener((observable, wasSelected, isSelected) -> {
+            if (isSelected && model != null) {
+                // Catch up with a preview mode switched in another tab.
+                updatePreviewMode();
+                restoreImage();
+            }
+            else {
+                // Hidden tabs may have to give up their images now.
+                PreviewImages.trim();
+            }
+        });
+        
+        // For the status bar.
+        tab.getProperties().put(Metrics.class, metrics);
+        Metrics.register(metrics);
     }
     
     private void openFile(File f) {
         try {
             // Open file in editor.
-            String data = new String(Files.readAllBytes(f.toPath()));
+            String data = TextFiles.read(f.toPath());
 
             codeArea.replaceText(data);
 
@@ -198,6 +262,11 @@ public class TabController implements Initializable {
     }
     
     private void saveData() {
+        // A placeholder tab, setTabModel() hasn't run yet.
+        if (model == null) {
+            return;
+        }
+        
         if (model.untitled) {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Save File");
@@ -221,73 +290,208 @@ public class TabController implements Initializable {
 
         System.out.println("Save Tab: " + model.backingFile);
         
-        try {
-            Files.write(
-                model.backingFile.toPath(), 
-                codeArea.getText().getBytes(StandardCharsets.UTF_8), 
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-            
-            model.tabText = model.backingFile.getName();
-            tab.setText(model.tabText);
+        // Written in the background, saved() or saveFailed() follow.
+        savingText = codeArea.getText();
+        saver.save(model.backingFile.toPath(), savingText);
+        
+        model.tabText = model.backingFile.getName();
+        tab.setText(model.tabText);
+        metrics.setName(model.tabText);
 
-            // No longer Untitled, so skip the dialog from now on.
-            model.untitled = false;
+        // No longer Untitled, so skip the dialog from now on.
+        model.untitled = false;
+        updateIncludeFolder();
+        watchBackingFile();
 
-            generatePng();
-            
-            // codeAreaPane.getParent()).setText(model.backingFile.getName();
-        } catch (UnsupportedEncodingException ex) {
-            Logger.getLogger(TabController.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(TabController.class.getName()).log(Level.SEVERE, null, ex);
+        generatePng();
+
+        // codeAreaPane.getParent()).setText(model.backingFile.getName();
+    }
+    
+    private void autosave() {
+        String text = codeArea.getText();
+        
+        if (!text.equals(diskText) && !text.equals(savingText)) {
+            savingText = text;
+            saver.save(model.backingFile.toPath(), text);
         }
     }
     
+    /**
+     * Autosaves the edits of the last AUTOSAVE_QUIET_MS right away, e.g. when
+     * exiting.
+     */
+    private void pushUnsaved() {
+        if (model != null && model.untitled) {
+            autosave();
+        }
+    }
+    
+    private void saved(String text) {
+        diskText = text;
+        
+        if (text.equals(savingText)) {
+            savingText = null;
+        }
+        
+        tab.setText(model.tabText);
+        tab.setTooltip(null);
+    }
+    
+    private void saveFailed(Exception ex) {
+        // Written again on the next save or autosave.
+        savingText = null;
+        
+        tab.setText(model.tabText + " (not saved)");
+        tab.setTooltip(new Tooltip("Could not save " + model.backingFile + ": " + ex.getMessage()));
+    }
+    
     private void generatePng()
     {
-        // Time the image generation.
-        long startTime = System.nanoTime();
-
-        ByteArrayOutputStream png = new ByteArrayOutputStream(1000000);
-        SourceStringReader reader = new SourceStringReader(codeArea.getText());
-
-        // Write the first image to "png"
-        String desc;
+        // Renders in the background, replacing any render still in flight.
+        // MainController shows the timings in the status bar.
+        renderer.submit(codeArea.getText());
+    }
+    
+    private void updateIncludeFolder() {
+        // Relative !includes are next to the file, like on the command line.
+        // Untitled documents live in the work folder, so keep the default.
+        renderer.setFolder(model.untitled ? null : model.backingFile.getAbsoluteFile().getParentFile());
+    }
+    
+    private static RenderOptions previewOptions() {
+        RenderOptions options = Common.isSvgPreview() ? RenderOptions.SVG : RenderOptions.PNG;
+        return options.javaLayout(Common.isJavaLayout());
+    }
+    
+    private void updatePreviewMode() {
+        RenderOptions options = previewOptions();
         
-        try {
-            desc = reader.generateImage(png);
-            System.out.println(desc);
-        } catch (IOException ex) {
-            Logger.getLogger(TabController.class.getName()).log(Level.SEVERE, null, ex);
+        if (!options.equals(renderer.getOptions())) {
+            renderer.setOptions(options);
+            generatePng();
         }
+    }
+    
+    private void showPreview(RenderPipeline.Preview shown) {
+        staleLabel.setVisible(false);
         
-//        if (desc.equals("(Error)")) {
-//            
-//        }
+        // Stay on the last page if pages were deleted.
+        renderer.setPage(shown.page);
         
-        InputStream pngLoad = new ByteArrayInputStream(png.toByteArray());
+        updatingPageStrip = true;
+        pageStrip.setPageCount(shown.pageCount);
+        pageStrip.setCurrentPageIndex(shown.page);
+        pageStrip.setVisible(shown.pageCount > 1);
+        pageStrip.setManaged(shown.pageCount > 1);
+        updatingPageStrip = false;
         
-        Image diagram = new Image(pngLoad);
-       
-        preview.setImage(diagram);
+        // Render again when an included file changes, unless the file is too
+        // large for automatic renders.
+        IncludeIndex.update(this, shown.includes, () -> {
+            if (!largeFile) {
+                generatePng();
+            }
+        });
         
-        // Return a null string if no generation.
+        RenderCache.Entry entry = shown.entry;
         
-        long stopTime = System.nanoTime();
-        long elapsed = (stopTime - startTime) / 10000000;
-
-        System.out.println(Long.toString(elapsed) + "ms");
-
-        // TODO: Update status bar.
-        // elapsedTimeMs.setText(Long.toString(elapsed) + "ms");
+        if (entry.svg != null) {
+            if (vectorPreview == null) {
+                vectorPreview = new WebView();
+                vectorPreview.setContextMenuEnabled(false);
+                previewPane.getChildren().add(vectorPreview);
+            }
+            
+            vectorPreview.getEngine().loadContent(toPage(entry.svg));
+            vectorPreview.setVisible(true);
+            
+            preview.setImage(null);
+            preview.setVisible(false);
+            shownData = null;
+            shownKey  = null;
+            PreviewImages.release(this);
+        }
+        else {
+            preview.setImage(entry.image);
+            preview.setVisible(true);
+            holdImage(shown.key, entry.data, entry.image);
+            
+            if (vectorPreview != null) {
+                vectorPreview.getEngine().loadContent("");
+                vectorPreview.setVisible(false);
+            }
+        }
+    }
+    
+    /**
+     * Keeps the last preview, but marks it as out of date.
+     */
+    private void showStale(String reason) {
+        staleLabel.setText("Stale: " + reason);
+        staleLabel.setVisible(true);
+        staleLabel.toFront();
+    }
+    
+    private void holdImage(String key, byte[] data, Image image) {
+        shownData = data;
+        shownKey  = key;
+        PreviewImages.hold(this, PreviewImages.sizeInBytes(image), tab::isSelected, this::releaseImage);
+    }
+    
+    private void releaseImage() {
+        preview.setImage(null);
+        
+        // Otherwise the RenderCache would keep it in memory all the same.
+        renderer.evict(shownKey, shownData);
+    }
+    
+    private void restoreImage() {
+        byte[] data = shownData;
+        
+        if (data == null || preview.getImage() != null) {
+            return;
+        }
+        
+        renderer.restoreAsync(shownKey, data).thenAcceptAsync(image -> {
+            // Unless something else was shown meanwhile.
+            if (shownData == data && preview.getImage() == null) {
+                preview.setImage(image);
+                holdImage(shownKey, data, image);
+            }
+        }, Platform::runLater);
+    }
+    
+    private static String toPage(String svg) {
+        StringBuilder page = new StringBuilder(SVG_PAGE_START.length() + svg.length() + SVG_PAGE_END.length() + 16);
+        page.append(SVG_PAGE_START);
+        
+        // Only look at the attributes of the <svg> element itself.
+        int root    = svg.indexOf("<svg");
+        int rootEnd = root >= 0 ? svg.indexOf('>', root) : -1;
+        int stretch = root >= 0 ? svg.indexOf(SVG_STRETCH, root) : -1;
+        
+        if (stretch >= 0 && stretch < rootEnd) {
+            page.append(svg, 0, stretch)
+                .append(SVG_FIT)
+                .append(svg, stretch + SVG_STRETCH.length(), svg.length());
+        }
+        else {
+            page.append(svg);
+        }
+        
+        return page.append(SVG_PAGE_END).toString();
     }
     
     @FXML
     protected void handleOnCloseRequest() {
-        executors.remove(executor);
-
-        System.out.println("Shutting down ExecutorService: " + executor);
-        if (!executor.isShutdown()) executor.shutdown();
+        renderer.cancel();
+        highlighter.cancel();
+        IncludeIndex.remove(this);
+        PreviewImages.release(this);
+        DirectoryWatcher.watch(onBackingFileChanged, Collections.emptySet());
+        Metrics.unregister(metrics);
+        saver.close();
     }
   
     @FXML
@@ -297,6 +501,20 @@ public class TabController implements Initializable {
             e.consume();
         }
         else
+        if (vector.match(e)) {
+            // Switches all tabs, the others follow when selected.
+            Common.setSvgPreview(!Common.isSvgPreview());
+            updatePreviewMode();
+            e.consume();
+        }
+        else
+        if (layout.match(e)) {
+            // Likewise.
+            Common.setJavaLayout(!Common.isJavaLayout());
+            updatePreviewMode();
+            e.consume();
+        }
+        else
         if (Common.SAVE.match(e)) {            
             // Check the current TabModel and save data
             // to that file where possible.
@@ -305,17 +523,116 @@ public class TabController implements Initializable {
         }
     }
 
-    protected void setTabModel(TabModel model) {
+    /**
+     * @param data the contents of the backing file, from readBackingFile().
+     */
+    protected void setTabModel(TabModel model, String data) {
         this.model = model;
+        metrics.setName(model.tabText);
+        updateIncludeFolder();
+        
+        largeFile = !model.untitled && TextFiles.isLarge(model.backingFile.toPath());
         
-        if (model.untitled == false && Files.exists(model.backingFile.toPath())) {
+        if (data != null) {
+            codeArea.replaceText(0, 0, data);
+            diskText = data;
+        }
+        
+        watchBackingFile();
+        
+        if (largeFile) {
+            Logger.getLogger(TabController.class.getName()).log(Level.FINE, 
+                "{0} is large: no highlighting, press CTRL-R to render.", model.backingFile);
+        }
+        else {
+            generatePng();
+        }
+    }
+    
+    /**
+     * Safe to call from any thread, so the files of several tabs can be read
+     * at once.
+     * 
+     * @return the contents of the backing file, or null if there is none yet.
+     *         Untitled documents are read back from their autosave.
+     */
+    static String readBackingFile(TabModel model) {
+        if (Files.exists(model.backingFile.toPath())) {
             try {
-                String data = new String(Files.readAllBytes(model.backingFile.toPath()), StandardCharsets.UTF_8);
-                codeArea.replaceText(0, 0, data);
+                return TextFiles.read(model.backingFile.toPath());
             } catch (IOException ex) {
                 Logger.getLogger(TabController.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        
+        return null;
+    }
+    
+    private void watchBackingFile() {
+        // Untitled documents are only ever written by us.
+        DirectoryWatcher.watch(onBackingFileChanged, 
+            model.untitled ? Collections.emptySet() : Collections.singleton(model.backingFile.toPath()));
+    }
+    
+    private void reloadBackingFile() {
+        Path file = model.backingFile.toPath();
+        
+        CompletableFuture
+            .supplyAsync(() -> {
+                try {
+                    return TextFiles.read(file);
+                } catch (IOException ex) {
+                    // Deleted or being replaced, wait for the next event.
+                    return null;
+                }
+            }, Workers.executor(Workers.Lane.IO, tab::isSelected))
+            .thenAcceptAsync(this::applyExternalChange, Platform::runLater);
+    }
+    
+    /**
+     * Brings the editor up to date with text from the backing file, changing
+     * only what differs. Undo history, highlighting and the renders of the
+     * untouched blocks all survive.
+     */
+    private void applyExternalChange(String text) {
+        // Unreadable, or our own save.
+        if (text == null || text.equals(diskText) || text.equals(savingText)) {
+            return;
+        }
+        
+        String current = codeArea.getText();
+        
+        if (!current.equals(diskText)) {
+            Logger.getLogger(TabController.class.getName()).log(Level.FINE, 
+                "Not reloading {0}, it has unsaved changes.", model.backingFile);
+            return;
+        }
+        
+        diskText = text;
+        
+        // Replace just the middle part which differs.
+        int max = Math.min(current.length(), text.length());
+        
+        int prefix = 0;
+        while (prefix < max && current.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        
+        int suffix = 0;
+        while (suffix < max - prefix 
+               && current.charAt(current.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        
+        Logger.getLogger(TabController.class.getName()).log(Level.FINE, 
+            "Reloading {0}: {1} chars replaced by {2}", 
+            new Object[] { model.backingFile, current.length() - prefix - suffix, text.length() - prefix - suffix });
+        
+        codeArea.replaceText(prefix, current.length() - suffix, text.substring(prefix, text.length() - suffix));
+        
+        if (!largeFile) {
+            generatePng();
+        }
     }
 
 }
@@ -0,0 +1,148 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes documents as UTF-8 text.
+ * 
+ * Writing encodes a chunk at a time into a temporary file, which then 
+ * replaces the original, so a crash leaves either the old or the new text,
+ * never half of it. Symbolic links are followed, and the replacement keeps
+ * the permissions of the original.
+ * 
+ * Safe to use from any thread, but only one thread at a time should write a
+ * given file.
+ */
+class TextFiles {
+    
+    // Bytes encoded per write.
+    private static final int CHUNK_BYTES = 64 * 1024;
+    
+    private TextFiles() {
+    }
+    
+    static boolean isLarge(Path file) {
+        try {
+            return Files.size(file) >= Common.getLargeFileBytes();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Files of every size are read the same way: any other way to get a 
+     * String out of the bytes, e.g. decoding in chunks, ends up holding more
+     * at once than the byte array and the String made from it.
+     */
+    static String read(Path file) throws IOException {
+        long size = Files.size(file);
+        
+        // A String can't hold more anyway.
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to edit: " + size + " bytes");
+        }
+        
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+    
+    static void write(Path file, CharSequence text) throws IOException {
+        // Replace what a symbolic link points to, not the link itself.
+        if (Files.exists(file)) {
+            file = file.toRealPath();
+        }
+        
+        Path temp = file.resolveSibling("." + file.getFileName() + ".tmp");
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temp, 
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                
+                // Same replacement of bad input as String.getBytes(UTF_8).
+                CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                
+                CharBuffer chars = CharBuffer.wrap(text);
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                
+                CoderResult result;
+                do {
+                    result = encoder.encode(chars, chunk, true);
+                    drain(chunk, channel);
+                } while (result.isOverflow());
+                
+                encoder.flush(chunk);
+                drain(chunk, channel);
+                
+                // On disk before it replaces the original.
+                channel.force(true);
+            }
+            
+            copyPermissions(file, temp);
+            
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only still there if something failed.
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Gives temp the POSIX permissions of file, e.g. keeps a script 
+     * executable or a private file private. The owner is whoever writes.
+     */
+    private static void copyPermissions(Path file, Path temp) throws IOException {
+        if (!Files.exists(file) || !file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        
+        Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+    }
+    
+    private static void drain(ByteBuffer chunk, FileChannel channel) throws IOException {
+        chunk.flip();
+        
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        
+        chunk.clear();
+    }
+}
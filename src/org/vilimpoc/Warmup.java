@@ -0,0 +1,92 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.scene.image.Image;
+
+/**
+ * Gets PlantUML going before the first tab needs it.
+ * 
+ * The first render in a JVM loads and initializes a few thousand classes, 
+ * measures fonts and runs interpreted, easily taking seconds where later
+ * renders take milliseconds. start() pays for that on a background thread 
+ * while the window comes up, by rendering and decoding SAMPLE_CODE once.
+ * 
+ * main() does the same without a window and exits. That's the training run 
+ * for the class data sharing archive built by "ant cds". It has its own 
+ * main(), because FabrikUml's starts the JavaFX toolkit, which fails on a 
+ * machine without a display.
+ */
+class Warmup {
+    
+    private Warmup() {
+    }
+    
+    /**
+     * @param args the command line arguments, ignored.
+     */
+    public static void main(String[] args) {
+        // PlantUML measures text with AWT, which mustn't look for a display.
+        System.setProperty("java.awt.headless", "true");
+        
+        System.exit(render() != null ? 0 : 1);
+    }
+    
+    static void start() {
+        // The workers warm themselves up.
+        if (RenderWorkers.isEnabled()) {
+            return;
+        }
+        
+        Thread t = new Thread(() -> {
+            Renderer.Result result = render();
+            
+            if (result != null) {
+                // And the PNG decoder of JavaFX.
+                new Image(result.toInputStream());
+            }
+        }, "FabrikUml-warmup");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+    
+    /**
+     * @return the rendered sample, or null if it failed.
+     */
+    static Renderer.Result render() {
+        long startTime = System.nanoTime();
+        
+        try {
+            Renderer.Result result = Renderer.render(PlantUmlSyntax.SAMPLE_CODE);
+            Logger.getLogger(Warmup.class.getName()).log(Level.FINE, "Warm-up: {0}ms", Metrics.ms(System.nanoTime() - startTime));
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            // Only costs the first real render its speed.
+            Logger.getLogger(Warmup.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+}
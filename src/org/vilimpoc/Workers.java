@@ -0,0 +1,183 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The application-wide background scheduler, shared by all tabs.
+ * 
+ * One pool, sized to the machine, runs highlighting and rendering jobs from
+ * a priority queue. Jobs for the visible tab run first, and highlighting goes
+ * ahead of rendering, since it's cheap and the user is typing. Jobs for 
+ * background tabs are throttled, so a restored session can't tie up every 
+ * worker while the user edits the selected tab.
+ * 
+ * Idle workers time out, so the pool costs nothing when there's no work.
+ */
+class Workers {
+    
+    enum Lane {
+        // Short file reads.
+        IO,
+        HIGHLIGHT,
+        RENDER,
+        
+        // Renders nobody is waiting for yet, e.g. neighbouring pages.
+        PREFETCH
+    }
+    
+    // Leave one core for the FX thread.
+    private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    
+    // How many background tab jobs may run at once.
+    private static final int BACKGROUND_LIMIT = Math.max(1, WORKER_COUNT / 2);
+    
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+    
+    private static final AtomicInteger workerId = new AtomicInteger();
+    
+    // Keeps FIFO order between jobs of the same priority.
+    private static final AtomicLong sequence = new AtomicLong();
+    
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        WORKER_COUNT, WORKER_COUNT, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<>(),
+        r -> {
+            Thread t = new Thread(r, "FabrikUml-worker-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    
+    static {
+        pool.allowCoreThreadTimeOut(true);
+    }
+    
+    // Background jobs waiting for one of the BACKGROUND_LIMIT slots.
+    private static final Queue<Job> backlog = new ArrayDeque<>();
+    
+    private static int backgroundRunning;
+    
+    private Workers() {
+    }
+    
+    private static class Job implements Runnable, Comparable<Job> {
+        final Runnable task;
+        final Lane     lane;
+        final boolean  foreground;
+        final long     order = sequence.getAndIncrement();
+        
+        Job(Runnable task, Lane lane, boolean foreground) {
+            this.task       = task;
+            this.lane       = lane;
+            this.foreground = foreground;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                task.run();
+            }
+            finally {
+                if (!foreground) {
+                    backgroundFinished();
+                }
+            }
+        }
+        
+        @Override
+        public int compareTo(Job other) {
+            if (foreground != other.foreground) {
+                return foreground ? -1 : 1;
+            }
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+    
+    /**
+     * @param foreground checked as each job is submitted, true if the job
+     *                   belongs to what the user is looking at.
+     * 
+     * @return an Executor which queues jobs in the given lane.
+     */
+    static Executor executor(Lane lane, BooleanSupplier foreground) {
+        return task -> execute(new Job(task, lane, foreground.getAsBoolean()));
+    }
+    
+    private static void execute(Job job) {
+        if (!job.foreground) {
+            synchronized (backlog) {
+                if (backgroundRunning >= BACKGROUND_LIMIT) {
+                    backlog.add(job);
+                    return;
+                }
+                backgroundRunning++;
+            }
+        }
+        
+        pool.execute(job);
+    }
+    
+    private static void backgroundFinished() {
+        Job next;
+        
+        synchronized (backlog) {
+            next = backlog.poll();
+            if (next == null) {
+                backgroundRunning--;
+                return;
+            }
+        }
+        
+        // Takes over the slot of the job that just finished.
+        if (!pool.isShutdown()) {
+            pool.execute(next);
+        }
+    }
+    
+    /**
+     * @return how many jobs of the foreground lanes run at once.
+     */
+    static int getWorkerCount() {
+        return WORKER_COUNT;
+    }
+    
+    static void shutdown() {
+        System.out.println("Shutting down workers: " + pool);
+        
+        synchronized (backlog) {
+            backlog.clear();
+        }
+        pool.shutdownNow();
+    }
+}
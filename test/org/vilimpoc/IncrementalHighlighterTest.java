@@ -0,0 +1,201 @@
+/**
+    Copyright (c) 2017 Max Vilimpoc
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all
+    copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+    SOFTWARE.
+*/
+package org.vilimpoc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javafx.application.Platform;
+import javafx.embed.swing.JFXPanel;
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.StyleSpan;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Edits followed by an incremental highlight() must leave the same styles as
+ * highlighting the whole text from scratch.
+ */
+public class IncrementalHighlighterTest {
+    
+    private static final String DOCUMENT = 
+        "@startuml\n" +
+        "class A\n" +
+        "class B\n" +
+        "class C\n" +
+        "@enduml";
+    
+    private interface FxAction {
+        void run() throws Exception;
+    }
+    
+    private CodeArea               area;
+    private IncrementalHighlighter highlighter;
+    
+    @BeforeClass
+    public static void startToolkit() {
+        // Starts the FX thread.
+        new JFXPanel();
+    }
+    
+    @Test
+    public void openingAndClosingCommentCascades() throws Exception {
+        onFxThread(() -> {
+            load(DOCUMENT);
+            
+            area.insertText(area.getText().indexOf("class A"), "/* ");
+            assertHighlighted();
+            
+            area.insertText(area.getText().indexOf("class C"), "*/ ");
+            assertHighlighted();
+            
+            area.deleteText(area.getText().indexOf("/* "), area.getText().indexOf("/* ") + 3);
+            assertHighlighted();
+        });
+    }
+    
+    @Test
+    public void commentOpenedOneCharacterAtATime() throws Exception {
+        onFxThread(() -> {
+            load(DOCUMENT);
+            
+            int at = area.getText().indexOf("class A");
+            area.insertText(at, "/");
+            assertHighlighted();
+            
+            area.insertText(at + 1, "*");
+            assertHighlighted();
+        });
+    }
+    
+    @Test
+    public void splittingLines() throws Exception {
+        onFxThread(() -> {
+            load(DOCUMENT);
+            
+            // Enter as the first edit after a clean highlight.
+            area.insertText(area.getText().indexOf("class B"), "\n");
+            assertHighlighted();
+            
+            area.insertText(0, "x\n\n");
+            area.insertText(area.getText().indexOf("class C") + 5, "\n");
+            assertHighlighted();
+        });
+    }
+    
+    @Test
+    public void joiningLines() throws Exception {
+        onFxThread(() -> {
+            load("a\n/* x\nb\nc */ class\nclass D");
+            
+            int newline = area.getText().indexOf("\nb");
+            area.deleteText(newline, newline + 1);
+            assertHighlighted();
+            
+            newline = area.getText().indexOf("\nc */");
+            area.deleteText(newline, newline + 1);
+            assertHighlighted();
+        });
+    }
+    
+    @Test
+    public void joiningIntoAComment() throws Exception {
+        onFxThread(() -> {
+            load("a /* x\n*/ class A\nclass B");
+            
+            // The comment now ends on the line it starts.
+            area.deleteText(area.getText().indexOf('\n'), area.getText().indexOf('\n') + 1);
+            assertHighlighted();
+        });
+    }
+    
+    /**
+     * Loads text and waits for the full pass, which runs right away on the
+     * executor given here.
+     */
+    private void load(String text) {
+        area = new CodeArea();
+        area.replaceText(text);
+        
+        highlighter = new IncrementalHighlighter(area, Runnable::run, new Metrics("test"));
+        area.plainTextChanges().subscribe(highlighter::textChanged);
+        highlighter.highlight();
+    }
+    
+    private void assertHighlighted() {
+        highlighter.highlight();
+        
+        String text = area.getText();
+        assertEquals(text, 
+            styles(IncrementalHighlighter.computeHighlighting(text, null), text), 
+            styles(area.getStyleSpans(0, area.getLength()), text));
+    }
+    
+    /**
+     * @return the style of every character but the newlines, which the 
+     *         CodeArea styles like the paragraph they end.
+     */
+    private static List<Collection<String>> styles(StyleSpans<Collection<String>> spans, String text) {
+        List<Collection<String>> styles = new ArrayList<>(text.length());
+        int i = 0;
+        
+        for (StyleSpan<Collection<String>> span : spans) {
+            for (int end = i + span.getLength(); i < end; i++) {
+                if (text.charAt(i) != '\n') {
+                    styles.add(span.getStyle());
+                }
+            }
+        }
+        
+        return styles;
+    }
+    
+    private static void onFxThread(FxAction action) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        
+        Platform.runLater(() -> {
+            try {
+                action.run();
+            } catch (Throwable t) {
+                failure.set(t);
+            } finally {
+                done.countDown();
+            }
+        });
+        
+        assertTrue("Timed out", done.await(10, TimeUnit.SECONDS));
+        
+        if (failure.get() instanceof Exception) {
+            throw (Exception) failure.get();
+        }
+        if (failure.get() instanceof Error) {
+            throw (Error) failure.get();
+        }
+    }
+}